@@ -0,0 +1,793 @@
+/**
+ * CompactWAVLTree
+ * <p>
+ * An implementation of a WAVL Tree with
+ * distinct integer keys and info, whose nodes keep no parent pointer.
+ * <p>
+ * Instead of walking up through parent pointers, insert and delete record the
+ * path from the root in a stack which is reused by every operation on the tree.
+ * Nodes don't store their rank either, only the rank difference to each child,
+ * so rebalancing never has to load a child node just to read its rank.
+ * The public API is the same as WAVLTree's.
+ */
+
+public class CompactWAVLTree {
+
+    private static final int INITIAL_PATH_CAPACITY = 64; // enough for any tree with less than 2^32 nodes
+
+    private WAVLNode root;
+    private final WAVLNode externalLeaf; // assigned to be the bottom node of every route in the tree
+    private WAVLNode min; // node with minimum key in the tree
+    private WAVLNode max; // node with maximum key in the tree
+    private int size; // number of nodes in the tree
+    private WAVLNode[] path; // nodes on the route from the root to the last node reached by an update
+    private int pathLength; // number of nodes currently stored in path
+
+    /**
+     * Default empty constructor to initialize an empty tree.
+     */
+    public CompactWAVLTree() {
+        this.root = null;
+        this.externalLeaf = new WAVLNode();
+        this.min = null;
+        this.max = null;
+        this.size = 0;
+        this.path = new WAVLNode[INITIAL_PATH_CAPACITY];
+        this.pathLength = 0;
+    }
+
+    /**
+     * public boolean empty()
+     * <p>
+     * returns true if and only if the tree is empty
+     */
+    public boolean empty() {
+        return this.root == null;
+    }
+
+    /**
+     * public String search(int k)
+     * <p>
+     * returns the info of an item with key k if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(int k) {
+        WAVLNode node = root;
+        while (node != null && node != externalLeaf) {
+            if (k == node.key) {
+                return node.info;
+            }
+            node = (k < node.key) ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * public int insert(int k, String i)
+     * <p>
+     * inserts an item with key k and info i to the WAVL tree.
+     * the tree must remain valid (keep its invariants).
+     * returns the number of rebalancing operations, or 0 if no rebalancing operations were necessary.
+     * returns -1 if an item with key k already exists in the tree.
+     */
+    public int insert(int k, String i) {
+        if (empty()) {
+            root = new WAVLNode(externalLeaf, k, i);
+            min = root;
+            max = root;
+            size++;
+            return 0;
+        }
+
+        WAVLNode parent = searchPath(k);
+        if (parent.key == k) {
+            return -1; // key already exists in the tree
+        }
+
+        WAVLNode newNode = new WAVLNode(externalLeaf, k, i);
+        // Insert newNode into the tree as the left or right child of parent.
+        // newNode's rank is higher by 1 than externalLeaf's, so the rank difference shrinks by 1
+        if (k < parent.key) {
+            parent.left = newNode;
+            parent.setLeftChildRankDiff(parent.getLeftChildRankDiff() - 1);
+        } else {
+            parent.right = newNode;
+            parent.setRightChildRankDiff(parent.getRightChildRankDiff() - 1);
+        }
+
+        // Update tree minimum, maximum and size
+        if (k < min.key) {
+            min = newNode;
+        }
+        if (k > max.key) {
+            max = newNode;
+        }
+        size++;
+
+        return rebalanceInsert(pathLength - 1);
+    }
+
+    /**
+     * public int delete(int k)
+     * <p>
+     * deletes an item with key k from the binary tree, if it is there;
+     * the tree must remain valid (keep its invariants).
+     * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
+     * returns -1 if an item with key k was not found in the tree.
+     */
+    public int delete(int k) {
+        if (empty()) {
+            return -1;
+        }
+
+        WAVLNode target = searchPath(k);
+        if (target.key != k) {
+            return -1;
+        }
+        int targetIndex = pathLength - 1;
+
+        updateClassMembersDelete(target, targetIndex);
+
+        WAVLNode removed = target;
+        if (target.isInnerNode()) {
+            // Extend the path down to the predecessor and switch it with target
+            pushPath(target.left);
+            while (path[pathLength - 1].right != externalLeaf) {
+                pushPath(path[pathLength - 1].right);
+            }
+            removed = path[pathLength - 1];
+            switchItems(target, removed);
+        }
+
+        // Replace removed with its only child, or with externalLeaf if it's a leaf
+        WAVLNode replacement = (removed.left != externalLeaf) ? removed.left : removed.right;
+        int parentIndex = pathLength - 2;
+        if (parentIndex < 0) {
+            root = (replacement != externalLeaf) ? replacement : null;
+            return 0;
+        }
+        WAVLNode parent = path[parentIndex];
+        // replacement's rank is lower by 1 than removed's, so the rank difference grows by 1
+        if (parent.left == removed) {
+            parent.left = replacement;
+            parent.setLeftChildRankDiff(parent.getLeftChildRankDiff() + 1);
+        } else {
+            parent.right = replacement;
+            parent.setRightChildRankDiff(parent.getRightChildRankDiff() + 1);
+        }
+
+        if (parent.isALeaf() && parent.getLeftChildRankDiff() == 2 && parent.getRightChildRankDiff() == 2) {
+            // This is a 2-2 leaf
+            parent.demote(parentOnPath(parentIndex));
+            return 1 + rebalanceDelete(parentIndex - 1);
+        }
+        return rebalanceDelete(parentIndex);
+    }
+
+    /**
+     * public String min()
+     * <p>
+     * Returns the info of the item with the smallest key in the tree,
+     * or null if the tree is empty
+     */
+    public String min() {
+        if (empty()) {
+            return null;
+        }
+
+        return min.info;
+    }
+
+    /**
+     * public String max()
+     * <p>
+     * Returns the info of the item with the largest key in the tree,
+     * or null if the tree is empty
+     */
+    public String max() {
+        if (empty()) {
+            return null;
+        }
+
+        return max.info;
+    }
+
+    /**
+     * public int[] keysToArray()
+     * <p>
+     * Returns a sorted array which contains all keys in the tree,
+     * or an empty array if the tree is empty.
+     */
+    public int[] keysToArray() {
+        int[] arr = new int[size];
+        if (root != null) {
+            keysToArrayRecursive(arr, 0, root);
+        }
+        return arr;
+    }
+
+    /**
+     * public String[] infoToArray()
+     * <p>
+     * Returns an array which contains all info in the tree,
+     * sorted by their respective keys,
+     * or an empty array if the tree is empty.
+     */
+    public String[] infoToArray() {
+        String[] arr = new String[size];
+        if (root != null) {
+            infoToArrayRecursive(arr, 0, root);
+        }
+        return arr;
+    }
+
+    /**
+     * public int size()
+     * <p>
+     * Returns the number of nodes in the tree.
+     * <p>
+     * precondition: none
+     * postcondition: none
+     */
+    public int size() {
+        return size;
+    }
+
+
+    // ************************************* Helper functions *************************************************
+
+    /**
+     * Searches for a node with the given key, recording the route from the root in path.
+     * <p>
+     * Precondition: tree is not empty
+     *
+     * @param key key of the node to look for
+     * @return node with the specified key, or the last node that was reached if key was not found
+     */
+    private WAVLNode searchPath(int key) {
+        pathLength = 0;
+        WAVLNode node = root;
+        while (true) {
+            pushPath(node);
+            if (key == node.key) {
+                return node;
+            }
+            WAVLNode next = (key < node.key) ? node.left : node.right;
+            if (next == externalLeaf) {
+                return node;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * Appends a node to the recorded path, growing the stack if needed.
+     *
+     * @param node node to append
+     */
+    private void pushPath(WAVLNode node) {
+        if (pathLength == path.length) {
+            WAVLNode[] newPath = new WAVLNode[path.length * 2];
+            System.arraycopy(path, 0, newPath, 0, pathLength);
+            path = newPath;
+        }
+        path[pathLength++] = node;
+    }
+
+    /**
+     * Returns the parent of the node at the given index of the recorded path.
+     *
+     * @param index index of a node in path
+     * @return parent of that node, or null if it is the root
+     */
+    private WAVLNode parentOnPath(int index) {
+        return (index > 0) ? path[index - 1] : null;
+    }
+
+    /**
+     * Rebalances the tree after insertion by the WAVL algorithm rules
+     *
+     * @param index index in path of the parent of the newly inserted node
+     * @return number of rebalancing operations
+     * (counting promote/demote/rotate as a single operation and double-rotate as two operations)
+     */
+    private int rebalanceInsert(int index) {
+        int operationCount = 0;
+        int rebalanceCase = checkCaseInsert(path[index]);
+
+        while (rebalanceCase == 1) {
+            path[index].promote(parentOnPath(index));
+            operationCount++;
+            index--;
+            rebalanceCase = (index >= 0) ? checkCaseInsert(path[index]) : 0;
+        }
+
+        WAVLNode node = (index >= 0) ? path[index] : null;
+        switch (rebalanceCase) {
+            case 2:
+                WAVLNode child = node.getChildWithRankDiff(0);
+                rotate(node, child, parentOnPath(index));
+
+                // node is demoted, which makes both node and child 1-1 nodes
+                node.setRankDiffs(1, 1);
+                child.setRankDiffs(1, 1);
+                operationCount++;
+                break;
+            case 3:
+                WAVLNode middleNode = node.getChildWithRankDiff(0);
+                WAVLNode bottomNode = middleNode.getChildWithRankDiff(1);
+                int bottomLeftDiff = bottomNode.getLeftChildRankDiff();
+                int bottomRightDiff = bottomNode.getRightChildRankDiff();
+
+                // Perform double rotation
+                doubleRotate(node, middleNode, bottomNode, parentOnPath(index));
+
+                // node and middleNode are demoted and bottomNode is promoted, so bottomNode's former children
+                // keep their rank differences and node and middleNode become 1-children of bottomNode
+                if (bottomNode.left == middleNode) {
+                    middleNode.setRankDiffs(1, bottomLeftDiff);
+                    node.setRankDiffs(bottomRightDiff, 1);
+                } else {
+                    middleNode.setRankDiffs(bottomRightDiff, 1);
+                    node.setRankDiffs(1, bottomLeftDiff);
+                }
+                bottomNode.setRankDiffs(1, 1);
+
+                operationCount += 2;
+                break;
+        }
+        return operationCount;
+    }
+
+    /**
+     * Checks which case of rebalancing is needed after insertion to fix the sub-tree starting at the given node.
+     *
+     * @param node root of the given sub-tree
+     * @return which case was found
+     */
+    private int checkCaseInsert(WAVLNode node) {
+        WAVLNode zeroDiffChild = node.getChildWithRankDiff(0);
+        if (zeroDiffChild == null) {
+            // No rebalancing is needed
+            return 0;
+        }
+        if (node.hasChildWithRankDiff(1)) {
+            // Case 1
+            return 1;
+        }
+
+        // Node has a 0-child and a 2-child, check which direction of case 2 or 3 it is
+        int outerDiff = (node.left == zeroDiffChild)
+                ? zeroDiffChild.getLeftChildRankDiff()
+                : zeroDiffChild.getRightChildRankDiff();
+        return (outerDiff == 1) ? 2 : 3;
+    }
+
+    /**
+     * Rebalances the tree after deletion by the WAVL algorithm rules
+     *
+     * @param index index in path of the node whose child was demoted or removed
+     * @return number of rebalancing operations
+     * (counting promote/demote/rotate as a single operation and double-rotate as two operations)
+     */
+    private int rebalanceDelete(int index) {
+        int operationCount = 0;
+        while (index >= 0) {
+            WAVLNode node = path[index];
+            switch (checkCaseDelete(node)) {
+                case 0:
+                    return operationCount; // no rebalancing is needed
+                case 1:
+                    node.demote(parentOnPath(index));
+                    operationCount++;
+                    break;
+                case 2:
+                    node.getChildWithRankDiff(1).demote(node);
+                    node.demote(parentOnPath(index));
+                    operationCount += 2;
+                    break;
+                case 3:
+                    WAVLNode diffOneChild3 = node.getChildWithRankDiff(1);
+                    int innerDiff3 = (node.right == diffOneChild3)
+                            ? diffOneChild3.getLeftChildRankDiff()
+                            : diffOneChild3.getRightChildRankDiff();
+                    rotate(node, diffOneChild3, parentOnPath(index));
+
+                    // node is demoted and diffOneChild3 is promoted, so the 3-child becomes a 2-child, the inner
+                    // grandchild keeps its rank difference, and the outer grandchild becomes a 2-child
+                    if (diffOneChild3.left == node) {
+                        node.setRankDiffs(2, innerDiff3);
+                        diffOneChild3.setRankDiffs(1, 2);
+                    } else {
+                        node.setRankDiffs(innerDiff3, 2);
+                        diffOneChild3.setRankDiffs(2, 1);
+                    }
+                    if (node.isALeaf() && node.getLeftChildRankDiff() == 2 && node.getRightChildRankDiff() == 2) {
+                        node.demote(diffOneChild3);
+                        return operationCount + 2;
+                    }
+                    return operationCount + 1;
+                case 4:
+                    WAVLNode diffOneChild4 = node.getChildWithRankDiff(1);
+                    WAVLNode diffOneGrandChild = diffOneChild4.getChildWithRankDiff(1);
+                    int grandChildLeftDiff = diffOneGrandChild.getLeftChildRankDiff();
+                    int grandChildRightDiff = diffOneGrandChild.getRightChildRankDiff();
+
+                    doubleRotate(node, diffOneChild4, diffOneGrandChild, parentOnPath(index));
+
+                    // node is demoted twice, diffOneChild4 once, and diffOneGrandChild is promoted twice, so
+                    // diffOneGrandChild's former children keep their rank differences and the outer nodes
+                    // become 1-children
+                    if (diffOneGrandChild.left == node) {
+                        node.setRankDiffs(1, grandChildLeftDiff);
+                        diffOneChild4.setRankDiffs(grandChildRightDiff, 1);
+                    } else {
+                        diffOneChild4.setRankDiffs(1, grandChildLeftDiff);
+                        node.setRankDiffs(grandChildRightDiff, 1);
+                    }
+                    diffOneGrandChild.setRankDiffs(2, 2);
+                    return operationCount + 2;
+            }
+            index--;
+        }
+        return operationCount; // demotions reached the root
+    }
+
+    /**
+     * Checks which case of rebalancing is needed after deletion to fix the sub-tree starting at the given node.
+     *
+     * @param node root of the given sub-tree
+     * @return which case was found
+     */
+    private int checkCaseDelete(WAVLNode node) {
+        if (!node.hasChildWithRankDiff(3)) {
+            return 0; // no rebalancing is needed
+        }
+
+        if (node.hasChildWithRankDiff(2)) {
+            // Case 1
+            return 1;
+        }
+
+        WAVLNode diffOneChild = node.getChildWithRankDiff(1);
+        int leftDiff = diffOneChild.getLeftChildRankDiff(); // difference from diffOneChild
+        int rightDiff = diffOneChild.getRightChildRankDiff(); // difference from diffOneChild
+
+        if (leftDiff == 2 && rightDiff == 2) {
+            return 2;
+        }
+
+        if (node.right == diffOneChild) {
+            return (leftDiff == 1 && rightDiff == 2) ? 4 : 3;
+        } else {
+            return (rightDiff == 1 && leftDiff == 2) ? 4 : 3;
+        }
+    }
+
+    /**
+     * Replaces the child pointer of parent which points to oldChild.
+     *
+     * @param parent   parent of oldChild, or null if oldChild is the root
+     * @param oldChild current child
+     * @param newChild node to put in oldChild's place
+     */
+    private void replaceChild(WAVLNode parent, WAVLNode oldChild, WAVLNode newChild) {
+        if (parent == null) {
+            root = newChild;
+        } else if (parent.left == oldChild) {
+            parent.left = newChild;
+        } else {
+            parent.right = newChild;
+        }
+    }
+
+    /**
+     * Rotates subtree around the edge connecting node1 and node2.
+     * Assumes node1 is node2's parent.
+     *
+     * @param node1       parent node to rotate around
+     * @param node2       child node that would become parent
+     * @param node1Parent parent of node1, or null if node1 is the root
+     */
+    private void rotate(WAVLNode node1, WAVLNode node2, WAVLNode node1Parent) {
+        if (node1.left == node2) {
+            // Right rotation
+            node1.left = node2.right;
+            node2.right = node1;
+        } else {
+            // Left rotation
+            node1.right = node2.left;
+            node2.left = node1;
+        }
+        replaceChild(node1Parent, node1, node2);
+    }
+
+    /**
+     * Performs a double rotation, first on node2 and node3, and then on node1 and node3.
+     *
+     * @param node1       highest node
+     * @param node2       middle node
+     * @param node3       lowest node
+     * @param node1Parent parent of node1, or null if node1 is the root
+     */
+    private void doubleRotate(WAVLNode node1, WAVLNode node2, WAVLNode node3, WAVLNode node1Parent) {
+        rotate(node2, node3, node1);
+        rotate(node1, node3, node1Parent);
+    }
+
+    /**
+     * Switches key and info between two nodes, keeping the minimum pointer on the minimum item.
+     *
+     * @param node        node we want to switch with its predecessor
+     * @param predecessor node's predecessor
+     */
+    private void switchItems(WAVLNode node, WAVLNode predecessor) {
+        String tempInfo = node.info;
+        int tempKey = node.key;
+        node.info = predecessor.info;
+        node.key = predecessor.key;
+        predecessor.info = tempInfo;
+        predecessor.key = tempKey;
+        if (min == predecessor) {
+            min = node; // the minimum item moved into node
+        }
+    }
+
+    /**
+     * Updates tree minimum and maximum pointers if needed, and decreases tree size by 1.
+     * <p>
+     * Precondition: path holds the route from the root to node
+     *
+     * @param node      node to be deleted
+     * @param nodeIndex index of node in path
+     */
+    private void updateClassMembersDelete(WAVLNode node, int nodeIndex) {
+        if (node == min) {
+            if (min.right != externalLeaf) {
+                min = min.right;
+                while (min.left != externalLeaf) {
+                    min = min.left;
+                }
+            } else {
+                min = parentOnPath(nodeIndex); // null if min was the root
+            }
+        }
+        if (node == max) {
+            if (max.left != externalLeaf) {
+                max = max.left;
+                while (max.right != externalLeaf) {
+                    max = max.right;
+                }
+            } else {
+                max = parentOnPath(nodeIndex); // null if max was the root
+            }
+        }
+
+        // Update tree size
+        size--;
+    }
+
+    /**
+     * Recursively inserts tree keys into an array in sorted order.
+     *
+     * @param arr          array to which the keys are inserted
+     * @param keysInserted number of keys already inserted into the array
+     * @param node         root of current sub-tree
+     * @return number of keys that were inserted to the array in current sub-tree
+     */
+    private int keysToArrayRecursive(int[] arr, int keysInserted, WAVLNode node) {
+        int leftSubTreeSize = 0;
+        if (node.left != externalLeaf) {
+            leftSubTreeSize = keysToArrayRecursive(arr, keysInserted, node.left);
+        }
+
+        arr[keysInserted + leftSubTreeSize] = node.key;
+
+        int rightSubTreeSize = 0;
+        if (node.right != externalLeaf) {
+            rightSubTreeSize = keysToArrayRecursive(arr, keysInserted + leftSubTreeSize + 1, node.right);
+        }
+
+        return leftSubTreeSize + 1 + rightSubTreeSize;
+    }
+
+    /**
+     * Recursively inserts tree info into an array in sorted order (by keys).
+     *
+     * @param arr             array to which the info is inserted
+     * @param stringsInserted number of info strings that were already inserted into the array
+     * @param node            root of current sub-tree
+     * @return number of info strings that were inserted to the array in current sub-tree
+     */
+    private int infoToArrayRecursive(String[] arr, int stringsInserted, WAVLNode node) {
+        int leftSubTreeSize = 0;
+        if (node.left != externalLeaf) {
+            leftSubTreeSize = infoToArrayRecursive(arr, stringsInserted, node.left);
+        }
+
+        arr[stringsInserted + leftSubTreeSize] = node.info;
+
+        int rightSubTreeSize = 0;
+        if (node.right != externalLeaf) {
+            rightSubTreeSize = infoToArrayRecursive(arr, stringsInserted + leftSubTreeSize + 1, node.right);
+        }
+
+        return leftSubTreeSize + 1 + rightSubTreeSize;
+    }
+
+    /**
+     * A single tree-node with a key and String info, without a parent pointer.
+     * <p>
+     * Instead of a rank the node keeps the rank difference to each of its children, two bits per child.
+     * WAVL rank differences are 1 or 2, and two bits leave room for the temporary 0 and 3 differences that
+     * exist while the tree is being rebalanced.
+     * Static so that nodes don't carry a reference to the enclosing tree either.
+     */
+    private static class WAVLNode {
+
+        private static final int RANK_DIFF_BITS = 2;
+        private static final int RANK_DIFF_MASK = (1 << RANK_DIFF_BITS) - 1;
+
+        private WAVLNode left;
+        private WAVLNode right;
+        private int key;
+        private String info;
+        private byte rankDiffs; // left child's rank difference in the low bits, right child's above them
+
+        /**
+         * Constructor to create a leaf node
+         *
+         * @param externalLeaf external leaf of the tree, used as both children
+         * @param key          key of this node
+         * @param info         info of this node
+         */
+        private WAVLNode(WAVLNode externalLeaf, int key, String info) {
+            this.right = externalLeaf;
+            this.left = externalLeaf;
+            this.key = key;
+            this.info = info;
+            setRankDiffs(1, 1);
+        }
+
+        /**
+         * External leaf constructor
+         */
+        private WAVLNode() {
+            this.right = null;
+            this.left = null;
+            this.key = -1;
+            this.info = null;
+            this.rankDiffs = 0;
+        }
+
+        /**
+         * Increases current node's rank by 1.
+         *
+         * @param parent parent of this node, or null if this is the root
+         */
+        private void promote(WAVLNode parent) {
+            setRankDiffs(getLeftChildRankDiff() + 1, getRightChildRankDiff() + 1);
+            if (parent != null) {
+                if (parent.left == this) {
+                    parent.setLeftChildRankDiff(parent.getLeftChildRankDiff() - 1);
+                } else {
+                    parent.setRightChildRankDiff(parent.getRightChildRankDiff() - 1);
+                }
+            }
+        }
+
+        /**
+         * Decreases current node's rank by 1.
+         *
+         * @param parent parent of this node, or null if this is the root
+         */
+        private void demote(WAVLNode parent) {
+            setRankDiffs(getLeftChildRankDiff() - 1, getRightChildRankDiff() - 1);
+            if (parent != null) {
+                if (parent.left == this) {
+                    parent.setLeftChildRankDiff(parent.getLeftChildRankDiff() + 1);
+                } else {
+                    parent.setRightChildRankDiff(parent.getRightChildRankDiff() + 1);
+                }
+            }
+        }
+
+        /**
+         * Returns the child node with the specified rank difference, if one exists.
+         *
+         * @param rankDiff rank difference to look for in child nodes
+         * @return child node with a rank of this.rank-rankDiff
+         */
+        private WAVLNode getChildWithRankDiff(int rankDiff) {
+            if (getLeftChildRankDiff() == rankDiff) {
+                return left;
+            } else if (getRightChildRankDiff() == rankDiff) {
+                return right;
+            }
+            return null; // the requested child was not found
+        }
+
+        /**
+         * Returns whether a child node with the specified rank difference exists.
+         *
+         * @param rankDiff rank difference to look for in child nodes
+         * @return true iff a child node with the specified rank difference was found
+         */
+        private boolean hasChildWithRankDiff(int rankDiff) {
+            return getChildWithRankDiff(rankDiff) != null;
+        }
+
+        /**
+         * Gets the rank difference between this node and its left child.
+         *
+         * @return difference in rank
+         */
+        private int getLeftChildRankDiff() {
+            return rankDiffs & RANK_DIFF_MASK;
+        }
+
+        /**
+         * Gets the rank difference between this node and its right child.
+         *
+         * @return difference in rank
+         */
+        private int getRightChildRankDiff() {
+            return (rankDiffs >> RANK_DIFF_BITS) & RANK_DIFF_MASK;
+        }
+
+        /**
+         * Sets the rank difference between this node and its left child.
+         *
+         * @param rankDiff difference in rank, between 0 and 3
+         */
+        private void setLeftChildRankDiff(int rankDiff) {
+            setRankDiffs(rankDiff, getRightChildRankDiff());
+        }
+
+        /**
+         * Sets the rank difference between this node and its right child.
+         *
+         * @param rankDiff difference in rank, between 0 and 3
+         */
+        private void setRightChildRankDiff(int rankDiff) {
+            setRankDiffs(getLeftChildRankDiff(), rankDiff);
+        }
+
+        /**
+         * Sets the rank differences between this node and both of its children.
+         *
+         * @param leftRankDiff  difference in rank from the left child, between 0 and 3
+         * @param rightRankDiff difference in rank from the right child, between 0 and 3
+         */
+        private void setRankDiffs(int leftRankDiff, int rightRankDiff) {
+            rankDiffs = (byte) (leftRankDiff | (rightRankDiff << RANK_DIFF_BITS));
+        }
+
+        /**
+         * Checks whether this node has no children that are not an external leaf.
+         *
+         * @return true iff this node is a leaf.
+         */
+        private boolean isALeaf() {
+            return right.isExternal() && left.isExternal();
+        }
+
+        /**
+         * Checks whether this node is an inner tree node.
+         *
+         * @return true iff both children are not external leaves
+         */
+        private boolean isInnerNode() {
+            return !left.isExternal() && !right.isExternal();
+        }
+
+        /**
+         * Checks whether this node is the external leaf, which is the only node without children pointers.
+         *
+         * @return true iff this is the external leaf
+         */
+        private boolean isExternal() {
+            return left == null;
+        }
+    }
+}
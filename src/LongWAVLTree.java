@@ -0,0 +1,805 @@
+/**
+ * LongWAVLTree
+ * <p>
+ * An implementation of a WAVL Tree with
+ * distinct 64-bit long keys and info
+ * <p>
+ * Generated by templates/GenerateKeyedWAVLTrees.java from templates/KeyedWAVLTree.java.template,
+ * edit the template and regenerate instead of editing this file.
+ */
+
+public class LongWAVLTree {
+
+    private static final int KEY_LENGTH = 1; // number of longs keysToArray uses for each key
+
+    private WAVLNode root;
+    private final WAVLNode externalLeaf; // assigned to be the bottom node of every route in the tree
+    private WAVLNode min; // node with minimum key in the tree
+    private WAVLNode max; // node with maximum key in the tree
+    private int size; // number of nodes in the tree
+
+    /**
+     * Default empty constructor to initialize an empty tree.
+     */
+    public LongWAVLTree() {
+        this.root = null;
+        this.externalLeaf = new WAVLNode();
+        this.min = null;
+        this.max = null;
+        this.size = 0;
+    }
+
+    /**
+     * public boolean empty()
+     * <p>
+     * returns true if and only if the tree is empty
+     */
+    public boolean empty() {
+        return this.root == null;
+    }
+
+    /**
+     * public String search(long k)
+     * <p>
+     * returns the info of an item with the given key if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(long k) {
+        if (empty()) {
+            return null;
+        }
+
+        WAVLNode result = searchRecursive(root, k);
+        if (compare(k, result) == 0) {
+            return result.info;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * public int insert(long k, String i)
+     * <p>
+     * inserts an item with the given key and info i to the WAVL tree.
+     * the tree must remain valid (keep its invariants).
+     * returns the number of rebalancing operations, or 0 if no rebalancing operations were necessary.
+     * returns -1 if an item with the given key already exists in the tree.
+     */
+    public int insert(long k, String i) {
+        WAVLNode searchResult;
+        if (!empty()) {
+            searchResult = searchRecursive(root, k);
+            if (compare(k, searchResult) == 0) {
+                return -1; // key already exists in the tree
+            }
+        } else {
+            root = new WAVLNode(null, externalLeaf, externalLeaf, k, i);
+
+            updateClassMembersInsert(root, k);
+
+            return 0;
+        }
+
+        WAVLNode newNode = new WAVLNode(searchResult, externalLeaf, externalLeaf, k, i);
+        // Insert newNode into the tree as the left or right child of searchResult
+        if (compare(k, searchResult) < 0) {
+            searchResult.left = newNode;
+        } else {
+            searchResult.right = newNode;
+        }
+
+        updateClassMembersInsert(newNode, k);
+
+        return rebalanceInsert(searchResult);
+    }
+
+    /**
+     * public int delete(long k)
+     * <p>
+     * deletes an item with the given key from the binary tree, if it is there;
+     * the tree must remain valid (keep its invariants).
+     * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
+     * returns -1 if an item with the given key was not found in the tree.
+     */
+    public int delete(long k) {
+        if (empty()) {
+            return -1;
+        }
+
+        WAVLNode searchResult = searchRecursive(root, k);
+        if (compare(k, searchResult) != 0) {
+            return -1;
+        }
+
+        updateClassMembersDelete(searchResult);
+        // Eliminate root case
+        if (searchResult == root && root.isALeaf()) {
+            root = null;
+            return 0;
+        }
+
+        if (searchResult.isInnerNode()) {
+            searchResult = switchWithPredecessor(searchResult);
+        }
+
+        deleteNode(searchResult);
+
+        WAVLNode parent = searchResult.parent;
+        if (parent == null) {
+            // The node we deleted was the root
+            return 0;
+        }
+
+        if (parent.isALeaf() && parent.getLeftChildRankDiff() == 2 && parent.getRightChildRankDiff() == 2) {
+            // This is a 2-2 leaf
+            parent.demote();
+            if (parent != root) {
+                return 1 + rebalanceDeleteRecursive(parent.parent);
+            } else {
+                return 1;
+            }
+        }
+        return rebalanceDeleteRecursive(parent);
+    }
+
+    /**
+     * public String min()
+     * <p>
+     * Returns the info of the item with the smallest key in the tree,
+     * or null if the tree is empty
+     */
+    public String min() {
+        if (empty()) {
+            return null;
+        }
+
+        return min.info;
+    }
+
+    /**
+     * public String max()
+     * <p>
+     * Returns the info of the item with the largest key in the tree,
+     * or null if the tree is empty
+     */
+    public String max() {
+        if (empty()) {
+            return null;
+        }
+
+        return max.info;
+    }
+
+    /**
+     * public long[] keysToArray()
+     * <p>
+     * Returns a sorted array which contains all keys in the tree,
+     * or an empty array if the tree is empty.
+     * Each key takes a single element.
+     */
+    public long[] keysToArray() {
+        long[] arr = new long[size * KEY_LENGTH];
+        if (root != null) {
+            keysToArrayRecursive(arr, 0, root);
+        }
+        return arr;
+    }
+
+    /**
+     * public String[] infoToArray()
+     * <p>
+     * Returns an array which contains all info in the tree,
+     * sorted by their respective keys,
+     * or an empty array if the tree is empty.
+     */
+    public String[] infoToArray() {
+        String[] arr = new String[size];
+        if (root != null) {
+            infoToArrayRecursive(arr, 0, root);
+        }
+        return arr;
+    }
+
+    /**
+     * public int size()
+     * <p>
+     * Returns the number of nodes in the tree.
+     * <p>
+     * precondition: none
+     * postcondition: none
+     */
+    public int size() {
+        return size;
+    }
+
+
+    // ************************************* Helper functions *************************************************
+
+    /**
+     * Compares a key with the key of a node.
+     *
+     * @param node node whose key is compared
+     * @return a negative number, zero or a positive number if the key is less than, equal to or greater than
+     * node's key
+     */
+    private static int compare(long k, WAVLNode node) {
+        return Long.compare(k, node.key);
+    }
+
+    /**
+     * Rebalances the tree after insertion by the WAVL algorithm rules
+     *
+     * @param node parent of the newly inserted node
+     * @return number of rebalancing operations
+     * (counting promote/demote/rotate as a single operation and double-rotate as two operations)
+     */
+    private int rebalanceInsert(WAVLNode node) {
+        int operationCount = 0;
+        int rebalanceCase = checkCaseInsert(node);
+
+        if (rebalanceCase == 0) {
+            return 0; // no rebalancing needed
+        }
+
+        while (rebalanceCase == 1) {
+            node.promote();
+            node = node.parent; // this code is reached iff node != null
+            rebalanceCase = checkCaseInsert(node);
+            operationCount++;
+        }
+
+        switch (rebalanceCase) {
+            case 0:
+                return operationCount; // no rebalancing needed
+            case 2:
+                WAVLNode child = node.getChildWithRankDiff(0);
+                node.demote();
+                rotate(node, child);
+                operationCount++;
+                break;
+            case 3:
+                // Fix ranks
+                WAVLNode middleNode = node.getChildWithRankDiff(0);
+                WAVLNode bottomNode = middleNode.getChildWithRankDiff(1);
+                node.demote();
+                middleNode.demote();
+                bottomNode.promote();
+
+                // Perform double rotation
+                doubleRotate(node, middleNode, bottomNode);
+
+                operationCount += 2;
+                break;
+        }
+        return operationCount;
+    }
+
+    /**
+     * Checks which case of rebalancing is needed after insertion to fix the sub-tree starting at the given node.
+     *
+     * @param node root of the given sub-tree
+     * @return which case was found
+     */
+    private int checkCaseInsert(WAVLNode node) {
+        if (node == null) {
+            // We have reached the root of the whole tree, no rebalancing is needed
+            return 0;
+        }
+
+        WAVLNode zeroDiffChild = node.getChildWithRankDiff(0);
+        if (zeroDiffChild == null) {
+            // No rebalancing is needed
+            return 0;
+        }
+        if (node.hasChildWithRankDiff(1)) {
+            // Case 1
+            return 1;
+        }
+
+        // Node has a 0-child and a 2-child, check which direction of case 2 or 3 it is
+        int outerDiff = (node.left == zeroDiffChild)
+                ? zeroDiffChild.getLeftChildRankDiff()
+                : zeroDiffChild.getRightChildRankDiff();
+        return (outerDiff == 1) ? 2 : 3;
+    }
+
+    /**
+     * Removes given node from the tree either by replacing it with externalLeaf, or with its child.
+     *
+     * @param node node to be removed
+     */
+    private void deleteNode(WAVLNode node) {
+        if (node.isALeaf()) {
+            swapNodes(node, externalLeaf);
+        } else {
+            // Unary node
+            swapNodes(node, node.getChildWithRankDiff(1));
+        }
+    }
+
+    /**
+     * Rebalances the tree after deletion by the WAVL algorithm rules
+     *
+     * @param node parent of the deleted node
+     * @return number of rebalancing operations
+     * (counting promote/demote/rotate as a single operation and double-rotate as two operations)
+     */
+    private int rebalanceDeleteRecursive(WAVLNode node) {
+        int rebalanceCase = checkCaseDelete(node);
+
+        switch (rebalanceCase) {
+            case 0:
+                return 0; // no rebalancing is needed
+            case 1:
+                node.demote();
+                return 1 + rebalanceDeleteRecursive(node.parent);
+            case 2:
+                node.getChildWithRankDiff(1).demote();
+                node.demote();
+                return 2 + rebalanceDeleteRecursive(node.parent);
+            case 3:
+                WAVLNode diffOneChild3 = node.getChildWithRankDiff(1);
+                rotate(node, diffOneChild3);
+
+                node.demote();
+                diffOneChild3.promote();
+                if (node.isALeaf() && node.getLeftChildRankDiff() == 2 && node.getRightChildRankDiff() == 2) {
+                    node.demote();
+                    return 2;
+                }
+                return 1;
+            case 4:
+                WAVLNode diffOneChild4 = node.getChildWithRankDiff(1);
+                WAVLNode diffOneGrandChild = diffOneChild4.getChildWithRankDiff(1);
+
+                doubleRotate(node, diffOneChild4, diffOneGrandChild);
+
+                node.demote();
+                node.demote();
+                diffOneChild4.demote();
+                diffOneGrandChild.promote();
+                diffOneGrandChild.promote();
+                return 2;
+        }
+        return 0; // unreachable code
+    }
+
+    /**
+     * Checks which case of rebalancing is needed after deletion to fix the sub-tree starting at the given node.
+     *
+     * @param node root of the given sub-tree
+     * @return which case was found
+     */
+    private int checkCaseDelete(WAVLNode node) {
+        if (node == null) {
+            return 0; // we reached the root of the tree, no rebalancing needed
+        } else if (!node.hasChildWithRankDiff(3)) {
+            return 0; // no rebalancing is needed
+        }
+
+        if (node.hasChildWithRankDiff(2)) {
+            // Case 1
+            return 1;
+        }
+
+        WAVLNode diffOneChild = node.getChildWithRankDiff(1);
+        int leftDiff = diffOneChild.getLeftChildRankDiff(); // difference from diffOneChild
+        int rightDiff = diffOneChild.getRightChildRankDiff(); // difference from diffOneChild
+
+        if (leftDiff == 2 && rightDiff == 2) {
+            return 2;
+        }
+
+        if (!diffOneChild.isLeftChild()) {
+            return (leftDiff == 1 && rightDiff == 2) ? 4 : 3;
+        } else {
+            return (rightDiff == 1 && leftDiff == 2) ? 4 : 3;
+        }
+    }
+
+    /**
+     * Swap pointers to node1 with pointers to node2 and update node2's parent.
+     *
+     * @param node1 node to be swapped
+     * @param node2 node to swap to
+     */
+    private void swapNodes(WAVLNode node1, WAVLNode node2) {
+        // Swap parent's child pointer
+        if (node1 != root) {
+            if (node1.isLeftChild()) {
+                node1.parent.left = node2;
+            } else {
+                node1.parent.right = node2;
+            }
+        } else {
+            root = node2;
+        }
+
+        if (node2 != externalLeaf) {
+            // Swap node2's parent pointer
+            node2.parent = node1.parent;
+        }
+    }
+
+    /**
+     * Searches iteratively for a node with the given key.
+     * <p>
+     * Precondition: root is not null
+     *
+     * @param root root of the subtree to search
+     * @return node with the specified key, or the last node that was reached if key was not found
+     */
+    private WAVLNode searchRecursive(WAVLNode root, long k) {
+        WAVLNode node = root;
+        while (true) {
+            int comparison = compare(k, node);
+            if (comparison == 0) {
+                return node;
+            }
+            WAVLNode next = (comparison < 0) ? node.left : node.right;
+            if (next == externalLeaf) {
+                return node;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * Rotates subtree around the edge connecting node1 and node2.
+     * Assumes node1 is node2's parent.
+     *
+     * @param node1 parent node to rotate around
+     * @param node2 child node that would become parent
+     */
+    private void rotate(WAVLNode node1, WAVLNode node2) {
+        WAVLNode node1Parent = node1.parent; // temporarily save so it's not lost on rotation
+
+        if (node2.isLeftChild()) {
+            rotateRight(node1, node2);
+        } else {
+            rotateLeft(node1, node2);
+        }
+
+        // Fix parent pointers
+        node1.parent = node2;
+        if (node2 != externalLeaf) {
+            node2.parent = node1Parent;
+        }
+
+        // If not at the tree's root, fix node1's child pointer
+        if (node1Parent != null) {
+            if (node1Parent.left == node1) {
+                node1Parent.left = node2;
+            } else {
+                node1Parent.right = node2;
+            }
+        }
+
+        // If node1 was the tree root, update root pointer
+        if (root == node1) {
+            root = node2;
+        }
+    }
+
+    /**
+     * Performs a left-rotation on the subtree around the edge connecting node1 and node2.
+     *
+     * @param node1 parent node to rotate around
+     * @param node2 child node that would become parent
+     */
+    private void rotateLeft(WAVLNode node1, WAVLNode node2) {
+        WAVLNode node2LeftChild = node2.left; // temporarily save so it's not lost on rotation
+
+        // Reassign pointers
+        node2.left = node1;
+        node1.right = node2LeftChild;
+        node2LeftChild.parent = node1;
+    }
+
+    /**
+     * Performs a right-rotation on the subtree around the edge connecting node1 and node2.
+     *
+     * @param node1 parent node to rotate around
+     * @param node2 child node that would become parent
+     */
+    private void rotateRight(WAVLNode node1, WAVLNode node2) {
+        WAVLNode node2RightChild = node2.right; // temporarily save so it's not lost on rotation
+
+        // Reassign pointers
+        node2.right = node1;
+        node1.left = node2RightChild;
+        node2RightChild.parent = node1;
+    }
+
+    /**
+     * Performs a double rotation, first on node2 and node3, and then on node1 and node2.
+     *
+     * @param node1 highest node
+     * @param node2 middle node
+     * @param node3 lowest node
+     */
+    private void doubleRotate(WAVLNode node1, WAVLNode node2, WAVLNode node3) {
+        rotate(node2, node3);
+        rotate(node1, node3);
+    }
+
+    /**
+     * perform an info and key switch between the given node and his predecessor.
+     * returns the predecessor after the switch.
+     *
+     * @param node node we want to switch with his predecessor
+     * @return the predecessor node with the given node's info and key
+     */
+    private WAVLNode switchWithPredecessor(WAVLNode node) {
+        WAVLNode predecessor = findPredecessor(node);
+        String tempInfo = node.info;
+        node.info = predecessor.info;
+        predecessor.info = tempInfo;
+        long tempKey = node.key;
+        node.key = predecessor.key;
+        predecessor.key = tempKey;
+        if (min == predecessor) {
+            min = node; // the minimum item moved into node
+        }
+        return predecessor;
+    }
+
+    /**
+     * Find the predecessor of the given node.
+     *
+     * @param node the node whose predecessor we are looking for
+     * @return node's predecessor
+     */
+    private WAVLNode findPredecessor(WAVLNode node) {
+        WAVLNode predecessor = node.left;
+        while (predecessor.right != externalLeaf) {
+            predecessor = predecessor.right;
+        }
+        return predecessor;
+    }
+
+    /**
+     * Find the successor of the given node.
+     *
+     * @param node the node whose successor we are looking for
+     * @return node's successor
+     */
+    private WAVLNode findSuccessor(WAVLNode node) {
+        WAVLNode successor = node.right;
+        while (successor.left != externalLeaf) {
+            successor = successor.left;
+        }
+        return successor;
+    }
+
+    /**
+     * Updates tree minimum and maximum pointers if needed, and increases tree size by 1.
+     *
+     * @param newNode the newly inserted node, whose key is also given
+     */
+    private void updateClassMembersInsert(WAVLNode newNode, long k) {
+        if (newNode == root) {
+            // Update both tree minimum and maximum to the new root
+            min = root;
+            max = root;
+        } else {
+            // Check if tree maximum or minimum need to be updated
+            if (compare(k, min) < 0) {
+                min = newNode;
+            }
+            if (compare(k, max) > 0) {
+                max = newNode;
+            }
+        }
+
+        // Update tree size
+        size++;
+    }
+
+    /**
+     * Updates tree minimum and maximum pointers if needed, and decreases tree size by 1.
+     *
+     * @param node node to be deleted
+     */
+    private void updateClassMembersDelete(WAVLNode node) {
+        // Check if tree maximum or minimum need to be updated
+        if (node == min) {
+            if (min.right != externalLeaf) {
+                min = findSuccessor(min);
+            } else {
+                min = min.parent; // null if min was the root
+            }
+        }
+        if (node == max) {
+            if (max.left != externalLeaf) {
+                max = findPredecessor(max);
+            } else {
+                max = max.parent; // null if max was the root
+            }
+        }
+
+        // Update tree size
+        size--;
+    }
+
+    /**
+     * Recursively inserts tree keys into an array in sorted order.
+     *
+     * @param arr          array to which the keys are inserted
+     * @param keysInserted number of keys already inserted into the array
+     * @param node         root of current sub-tree
+     * @return number of keys that were inserted to the array in current sub-tree
+     */
+    private int keysToArrayRecursive(long[] arr, int keysInserted, WAVLNode node) {
+        // Insert left sub-tree to the array in order
+        int leftSubTreeSize = 0;
+        if (node.left != externalLeaf) {
+            leftSubTreeSize = keysToArrayRecursive(arr, keysInserted, node.left);
+        }
+
+        // Insert current node to the array
+        int index = (keysInserted + leftSubTreeSize) * KEY_LENGTH;
+        arr[index] = node.key;
+
+        // Insert right sub-tree to the array in order
+        int rightSubTreeSize = 0;
+        if (node.right != externalLeaf) {
+            rightSubTreeSize = keysToArrayRecursive(arr, keysInserted + leftSubTreeSize + 1, node.right);
+        }
+
+        return leftSubTreeSize + 1 + rightSubTreeSize;
+    }
+
+    /**
+     * Recursively inserts tree info into an array in sorted order (by keys).
+     *
+     * @param arr             array to which the info is inserted
+     * @param stringsInserted number of info strings that were already inserted into the array
+     * @param node            root of current sub-tree
+     * @return number of info strings that were inserted to the array in current sub-tree
+     */
+    private int infoToArrayRecursive(String[] arr, int stringsInserted, WAVLNode node) {
+        // Insert left sub-tree to the array in order
+        int leftSubTreeSize = 0;
+        if (node.left != externalLeaf) {
+            leftSubTreeSize = infoToArrayRecursive(arr, stringsInserted, node.left);
+        }
+
+        // Insert current node to the array
+        arr[stringsInserted + leftSubTreeSize] = node.info;
+
+        // Insert right sub-tree to the array in order
+        int rightSubTreeSize = 0;
+        if (node.right != externalLeaf) {
+            rightSubTreeSize = infoToArrayRecursive(arr, stringsInserted + leftSubTreeSize + 1, node.right);
+        }
+
+        return leftSubTreeSize + 1 + rightSubTreeSize;
+    }
+
+    /**
+     * A single tree-node with a long key and String info
+     */
+    private class WAVLNode {
+
+        private WAVLNode parent;
+        private WAVLNode left;
+        private WAVLNode right;
+        private long key;
+        private String info;
+        private int rank;
+
+        /**
+         * Constructor to create a tree node
+         *
+         * @param parent parent of this node
+         * @param right  right child of this node
+         * @param left   left child of this node
+         * @param info   info of this node
+         */
+        private WAVLNode(WAVLNode parent, WAVLNode right, WAVLNode left, long k, String info) {
+            this.parent = parent;
+            this.right = right;
+            this.left = left;
+            this.key = k;
+            this.info = info;
+            this.rank = 0;
+        }
+
+        /**
+         * External leaf constructor
+         */
+        private WAVLNode() {
+            this.parent = null;
+            this.right = null;
+            this.left = null;
+            this.info = null;
+            this.rank = -1;
+        }
+
+        /**
+         * Increases current node's rank by 1.
+         */
+        private void promote() {
+            rank++;
+        }
+
+        /**
+         * Decreases current node's rank by 1.
+         */
+        private void demote() {
+            rank--;
+        }
+
+        /**
+         * Returns the child node with the specified rank difference, if one exists.
+         *
+         * @param rankDiff rank difference to look for in child nodes
+         * @return child node with a rank of this.rank-rankDiff
+         */
+        private WAVLNode getChildWithRankDiff(int rankDiff) {
+            if (left.rank == this.rank - rankDiff) {
+                return left;
+            } else if (right.rank == this.rank - rankDiff) {
+                return right;
+            }
+            return null; // the requested child was not found
+        }
+
+        /**
+         * Returns whether a child node with the specified rank difference exists.
+         *
+         * @param rankDiff rank difference to look for in child nodes
+         * @return true iff a child node with the specified rank difference was found
+         */
+        private boolean hasChildWithRankDiff(int rankDiff) {
+            return getChildWithRankDiff(rankDiff) != null;
+        }
+
+        /**
+         * Gets the rank difference between this node and its left child.
+         *
+         * @return difference in rank
+         */
+        private int getLeftChildRankDiff() {
+            return this.rank - left.rank;
+        }
+
+        /**
+         * Gets the rank difference between this node and its right child.
+         *
+         * @return difference in rank
+         */
+        private int getRightChildRankDiff() {
+            return this.rank - right.rank;
+        }
+
+        /**
+         * Checks whether this node has no children that are not an external leaf.
+         *
+         * @return true iff this node is a leaf.
+         */
+        private boolean isALeaf() {
+            return right == externalLeaf
+                    && left == externalLeaf;
+        }
+
+        /**
+         * Checks whether this node is the left child of its parent.
+         *
+         * @return true iff this is the left child of parent
+         */
+        private boolean isLeftChild() {
+            return parent.left == this;
+        }
+
+        /**
+         * Checks whether this node is an inner tree node.
+         *
+         * @return true iff both children are not external leaves
+         */
+        private boolean isInnerNode() {
+            return left != externalLeaf && right != externalLeaf;
+        }
+    }
+}
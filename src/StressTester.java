@@ -0,0 +1,1749 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Randomized differential stress test of WAVLTree against java.util.TreeMap.
+ * <p>
+ * Every operation is applied to both maps and their results are compared, and the tree's invariants
+ * are checked with WAVLTree.validate() at regular intervals. A failure reports the seed and operation
+ * index, and running again with the same arguments reproduces it.
+ * <p>
+ * Each rebalancing mode is tested in several variants: a plain tree, a multimap, whose model keeps a list
+ * of values per key, and each balance policy. The ADAPTIVE variant cycles through read-mostly, delete-heavy
+ * and balanced phases, and fails unless the tree switches policies. RELAXED trees are rebalanced now and
+ * then once rebalanceDue() is true, as a caller would while idle.
+ * <p>
+ * The lazy variants delete by leaving tombstones, which reinsertions reuse. They interleave bounded compact()
+ * calls while the tree grows, rarely turn lazy deletion off and back on, and call rebalance() once tombstones
+ * outnumber the items, so that both compaction and the rebuild find many of them.
+ * <p>
+ * At every validation point, the hashed variants check rootHash() and rangeHash() against trees built from
+ * the model. The hashed variant without a time to live also diffs and merges a copy which differs in a few
+ * keys, so that diff skips the key ranges whose hashes agree.
+ * <p>
+ * The TTL variants run on a fake clock which advances by 0 to 2 ms per operation and now and then jumps
+ * ahead, and insert half of their items with a time to live. Updates delete expired items in batches, so
+ * the model can't tell which of them are still in the tree: it keeps them apart, queries must skip them,
+ * and size() and valueCount() must lie between the counts with and without them. expire() now and then,
+ * and at every validation point, makes the model exact again. The plain TTL variant is hashed, and at every
+ * validation point diffs and merges a random tree with its own clock and expired items of its own, which
+ * checks that merge carries the remaining time to live over. The lazy TTL variant gives every item a time
+ * to live, and now and then lets more of them expire at once than a batch deletes, then reinserts the one
+ * the batch reaches last among tombstones.
+ * <p>
+ * The cache variants put a search cache in front of a WAVL tree and of a lazy RELAXED tree, whose nodes also
+ * move by rebuilds. Half of their operations use a few hot keys, and every operation is followed by a search
+ * of a hot key, so that updates keep deleting and moving the nodes of cached keys. The cache is resized, or
+ * removed, now and then, and its hit and miss counts must add up to the searches since.
+ * <p>
+ * The versioned variants apply every update to a VersionedWAVLTree as well. They hold up to 8 snapshots
+ * across later writes, each with a copy of the model frozen when it was taken, and compare the snapshots
+ * with their copies and diff them with each other and with the latest version. Finally, several reader
+ * threads take snapshots of a VersionedWAVLTree while a writer updates it, and check each of them against
+ * the checksum the writer recorded for its epoch.
+ * <p>
+ * The compact variants apply every update to a CompactWAVLTree in lockstep, which keeps rank differences
+ * instead of ranks, and compare its results, contents, min() and max() with the tree's. In bottom-up mode
+ * the counts of rebalancing operations must agree too.
+ * <p>
+ * The long key variants do the same with a LongWAVLTree and a Long128WAVLTree, under keys which keep the
+ * order of the int keys but spread them over all 64-bit values, negative ones included. The 128-bit keys
+ * spread a key's upper bits over the signed high word, and map its two lowest bits to low words which
+ * compare differently as signed and unsigned values, so that the order of the low word must be unsigned.
+ * Both trees are generated from templates/KeyedWAVLTree.java.template, and
+ * java templates/GenerateKeyedWAVLTrees.java --check fails unless the tested files match the template.
+ * <p>
+ * Finally, a WAVLTree publishes its updates to a small WAVLChangeFeed while follower threads poll it, some of
+ * them slowly so that the producer has to wait, and others subscribing and closing again all the time. Every
+ * follower must receive consecutive events matching the ones recorded by the writer, never lag more than the
+ * feed's capacity, and the steady followers' replicas must end up equal to the tree.
+ * <p>
+ * Last, a WAVLTreeServer is checked over TCP and over a Unix domain socket. A client pipelines batches of
+ * random requests and compares every response with the result of the same request on a local tree. A request
+ * which only partly arrived must not hold up the answers to the ones before it, and an unknown opcode or an
+ * oversized string must close the connection, while the server keeps serving other connections.
+ * <p>
+ * Usage: java StressTester [operations] [seed] [key range] [validate interval]
+ */
+public class StressTester {
+    private static final long DEFAULT_OPERATIONS = 10000000L; // per variant
+    private static final int DEFAULT_KEY_RANGE = 1 << 16;
+    private static final int DEFAULT_VALIDATE_INTERVAL = 1 << 20;
+    private static final int PROGRESS_INTERVAL = 10000000;
+    private static final int MULTIMAP_VALUES = 4; // distinct info values per key in a multimap
+    private static final int REBALANCE_ODDS = 64; // a due rebalance() runs once in this many operations
+    private static final int COMPACT_ODDS = 32; // compact() runs once in this many operations of a lazy tree
+    private static final int MAX_COMPACT_NODES = 64; // largest number of nodes a single compact() visits
+    private static final int LAZY_TOGGLE_ODDS = 1 << 17; // lazy deletion is turned off once in this many operations
+    private static final int CLOCK_JUMP_ODDS = 4096; // the clock jumps ahead once in this many operations
+    private static final int RANGE_ODDS = 16; // one in this many searches is a range query
+    private static final int MAX_RANGE_WIDTH = 64; // largest number of keys a range query spans
+    private static final int EXPIRY_BATCH = 32; // most expired items a WAVLTree update deletes
+    private static final int MASS_EXPIRY_ODDS = 1 << 12; // all items expire at once in this many operations
+    private static final int EXPIRE_ODDS = 256; // expire() runs once in this many operations of a TTL tree
+    private static final int MIN_TTL_RANGE = 16; // smallest range of times to live, in ms
+    private static final int MAX_COPY_CHANGES = 8; // largest number of keys a copy diffed with a hashed tree changes
+    private static final int MAX_MERGED_KEYS = 1024; // largest number of keys in a tree merged into a TTL tree
+    private static final int CACHE_CAPACITY = 256; // initial number of search cache slots
+    private static final int HOT_KEYS = 64; // keys used by half of the operations of a cache variant
+    private static final int CACHE_RESIZE_ODDS = 1 << 14; // the search cache is resized once in this many operations
+    private static final int MIN_PHASE_LENGTH = 1 << 14; // several of the ADAPTIVE policy's 4096-operation windows
+    private static final int SNAPSHOT_ODDS = 4096; // a snapshot is taken or closed once in this many operations
+    private static final int MAX_SNAPSHOTS = 8; // most snapshots a versioned variant holds at once
+    private static final int SNAPSHOT_SEARCHES = 16; // random keys searched in a snapshot when it is checked
+    private static final int READER_THREADS = 4; // threads taking snapshots while a writer updates the tree
+    private static final int MAX_CONCURRENT_WRITES = 1 << 20; // largest number of updates while readers run
+    private static final int FEED_CAPACITY = 64; // events a follower of the change feed may fall behind
+    private static final int STEADY_FOLLOWERS = 2; // followers of the change feed which replicate the whole run
+    private static final int CHURNING_FOLLOWERS = 2; // followers which keep subscribing and closing again
+    private static final int MAX_FOLLOW_EVENTS = 256; // most events a churning follower polls before closing
+    private static final int MAX_POLL_BATCH = 16; // most events a follower polls at once
+    private static final int SLOW_POLL_ODDS = 64; // a steady follower pauses before one in this many polls
+    private static final int MAX_SERVER_REQUESTS = 1 << 18; // requests sent to each WAVLTreeServer
+    private static final int MAX_PIPELINE_DEPTH = 300; // most requests sent before reading their responses
+    private static final int MAX_REQUEST_RANGE = 40; // widest key range of a RANGE request
+    private static final long PARTIAL_REQUEST_TIMEOUT_MILLIS = 3000; // longest wait for an answer before a partial request
+    private static final long[] LOW_WORDS = {0L, 1L, Long.MIN_VALUE, -1L}; // in unsigned order, not in signed order
+
+    private final long operations;
+    private final long seed;
+    private final int keyRange;
+    private final int validateInterval;
+    private final Variant variant;
+
+    private WAVLTree tree;
+    private TreeMap<Integer, List<String>> expected; // values of every key in insertion order
+    private int expectedValueCount;
+    private FakeClock clock;
+    private int ttlRange; // times to live are drawn from 1 to ttlRange ms
+    private Map<Integer, Long> deadlines; // deadline of every expected key with a time to live
+    private TreeMap<Long, List<Integer>> keysByDeadline; // keys whose deadline has not passed, by deadline
+    private Set<Integer> expired; // expected keys whose deadline passed, which the tree may have deleted
+    private int expiredValueCount; // number of values of the expired keys
+    private long operationIndex;
+    private int policySwitches; // changes of the active balance policy seen
+    private int rebalanceCount; // calls to rebalance() which found it due
+    private long compactedCount; // tombstones removed by compact()
+    private long expiredCount; // items deleted by expire()
+    private int mergeCount; // trees merged into the tree
+    private long cacheHitCount; // searches answered by the search cache, over all of its sizes
+    private int cacheCapacity; // current number of search cache slots, 0 for none
+    private long cachedSearchCount; // searches of a non-empty tree since the search cache was last set
+    private int worstHeight; // highest tree seen at a validation point
+    private int worstHeightSize; // tree size when worstHeight was seen
+    private double worstHeightRatio; // highest ratio of height to log2(size + 1) seen
+    private VersionedWAVLTree versionedTree; // receives every update of the tree in a versioned variant
+    private long versionedEpoch; // number of updates the versioned tree applied
+    private List<HeldSnapshot> snapshots; // open snapshots of the versioned tree
+    private long snapshotCount; // snapshots taken
+    private CompactWAVLTree compactTree; // receives every update of the tree in a compact variant
+    private LongWAVLTree longTree; // receives every update of the tree in a long key variant, under longKey()
+    private Long128WAVLTree long128Tree; // and under highWord() and lowWord()
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        long operations = (args.length > 0) ? Long.parseLong(args[0]) : DEFAULT_OPERATIONS;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : System.nanoTime();
+        int keyRange = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_KEY_RANGE;
+        int validateInterval = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_VALIDATE_INTERVAL;
+
+        for (WAVLTree.RebalanceMode mode : WAVLTree.RebalanceMode.values()) {
+            Variant[] variants = {
+                    new Variant(mode),
+                    new Variant(mode).multimap(),
+                    new Variant(mode).policy(WAVLTree.BalancePolicy.AVL),
+                    new Variant(mode).policy(WAVLTree.BalancePolicy.RELAXED),
+                    new Variant(mode).policy(WAVLTree.BalancePolicy.ADAPTIVE).phased(),
+                    new Variant(mode).lazy(),
+                    new Variant(mode).multimap().lazy(),
+                    new Variant(mode).policy(WAVLTree.BalancePolicy.RELAXED).lazy(),
+                    new Variant(mode).hashed(),
+                    new Variant(mode).hashed().ttl(),
+                    new Variant(mode).multimap().ttl(),
+                    new Variant(mode).lazy().allTtl(),
+                    new Variant(mode).cache(CACHE_CAPACITY),
+                    new Variant(mode).policy(WAVLTree.BalancePolicy.RELAXED).lazy().cache(CACHE_CAPACITY),
+                    new Variant(mode).versioned(),
+                    new Variant(mode).compactTree(),
+                    new Variant(mode).longKeys()
+            };
+            for (Variant variant : variants) {
+                new StressTester(operations, seed, keyRange, validateInterval, variant).run();
+            }
+        }
+        runConcurrentReaders(Math.min(operations, MAX_CONCURRENT_WRITES), seed, keyRange);
+        runChangeFeed(Math.min(operations, MAX_CONCURRENT_WRITES), seed, keyRange);
+        Path socketDirectory = Files.createTempDirectory("StressTester");
+        try {
+            runServer(WAVLTreeServer.parseAddress("0"), Math.min(operations, MAX_SERVER_REQUESTS), seed, keyRange);
+            runServer(WAVLTreeServer.parseAddress(socketDirectory.resolve("server.sock").toString()),
+                    Math.min(operations, MAX_SERVER_REQUESTS), seed, keyRange);
+        } finally {
+            Files.deleteIfExists(socketDirectory.resolve("server.sock"));
+            Files.delete(socketDirectory);
+        }
+        System.out.println("Done");
+    }
+
+    private StressTester(long operations, long seed, int keyRange, int validateInterval, Variant variant) {
+        this.operations = operations;
+        this.seed = seed;
+        this.keyRange = keyRange;
+        this.validateInterval = validateInterval;
+        this.variant = variant;
+    }
+
+    private void run() {
+        System.out.println(variant + ": " + operations + " operations, seed " + seed + ", key range " + keyRange);
+        tree = variant.createTree();
+        expected = new TreeMap<Integer, List<String>>();
+        expectedValueCount = 0;
+        clock = new FakeClock(0);
+        ttlRange = Math.max(MIN_TTL_RANGE, keyRange / 4);
+        deadlines = new HashMap<Integer, Long>();
+        keysByDeadline = new TreeMap<Long, List<Integer>>();
+        expired = new HashSet<Integer>();
+        expiredValueCount = 0;
+        if (variant.ttl) {
+            tree.setClock(clock);
+        }
+        cacheCapacity = variant.cacheCapacity;
+        // Spare reader slots for the searches and the diffs with the latest version while all snapshots are held
+        versionedTree = variant.versioned ? new VersionedWAVLTree(MAX_SNAPSHOTS + 2) : null;
+        versionedEpoch = 0;
+        snapshots = new ArrayList<HeldSnapshot>();
+        compactTree = variant.compactTree ? new CompactWAVLTree() : null;
+        longTree = variant.longKeys ? new LongWAVLTree() : null;
+        long128Tree = variant.longKeys ? new Long128WAVLTree() : null;
+        Random random = new Random(seed);
+        long startNanos = System.nanoTime();
+        WAVLTree.BalancePolicy activePolicy = tree.activeBalancePolicy();
+        long cycle = variant.phased ? Math.max(keyRange * 8L, 3L * MIN_PHASE_LENGTH) : keyRange * 8L;
+
+        for (operationIndex = 0; operationIndex < operations; operationIndex++) {
+            if (variant.ttl) {
+                // A jump makes many items due at once, more than a batch of expiries deletes
+                clock.advance((random.nextInt(CLOCK_JUMP_ODDS) == 0) ? random.nextInt(ttlRange) : random.nextInt(3));
+                expireModel();
+            }
+            double phase = (double) (operationIndex % cycle) / cycle;
+            double insertProbability;
+            double deleteProbability;
+            if (variant.phased) {
+                // Read-mostly, delete-heavy and balanced thirds, each long enough for ADAPTIVE to react
+                insertProbability = (phase < 1.0 / 3) ? 0.05 : (phase < 2.0 / 3) ? 0.35 : 0.45;
+                deleteProbability = (phase < 1.0 / 3) ? 0.05 : (phase < 2.0 / 3) ? 0.55 : 0.35;
+            } else {
+                // Drift the insert probability so the tree repeatedly grows towards keyRange and shrinks back
+                insertProbability = (phase < 0.5) ? 0.7 : 0.3;
+                deleteProbability = 0.9 - insertProbability;
+            }
+            int key = (variant.cacheCapacity > 0 && random.nextBoolean())
+                    ? random.nextInt(Math.min(keyRange, HOT_KEYS)) : random.nextInt(keyRange);
+            double operation = random.nextDouble();
+
+            if (operation < insertProbability) {
+                String info = variant.multimap ? key + "/" + random.nextInt(MULTIMAP_VALUES) : Integer.toString(key);
+                boolean withTtl = variant.ttl && (variant.allTtl || random.nextBoolean());
+                insert(key, info, withTtl ? 1 + random.nextInt(ttlRange) : 0);
+            } else if (operation < insertProbability + deleteProbability) {
+                if (variant.phased && expected.ceilingKey(key) != null) {
+                    key = expected.ceilingKey(key); // deletions which find their key report their rebalancing
+                }
+                if (variant.multimap && random.nextBoolean()) {
+                    deleteValue(key, key + "/" + random.nextInt(MULTIMAP_VALUES));
+                } else {
+                    delete(key);
+                }
+            } else if (random.nextInt(RANGE_ODDS) == 0) {
+                searchRange(key, key + random.nextInt(MAX_RANGE_WIDTH));
+            } else {
+                search(key);
+            }
+            if (tree.rebalanceDue() && random.nextInt(REBALANCE_ODDS) == 0) {
+                tree.rebalance();
+                rebalanceCount++;
+                check(tree.tombstoneCount() == 0, "rebalance() left " + tree.tombstoneCount() + " tombstones");
+            }
+            // Compacting only while the tree grows lets tombstones outnumber the items while it shrinks
+            if (variant.lazy && phase < 0.5 && random.nextInt(COMPACT_ODDS) == 0) {
+                compact(1 + random.nextInt(MAX_COMPACT_NODES));
+            }
+            if (variant.lazy && random.nextInt(LAZY_TOGGLE_ODDS) == 0) {
+                tree.setLazyDelete(false);
+                check(tree.tombstoneCount() == 0, "setLazyDelete(false) left " + tree.tombstoneCount() + " tombstones");
+                validate();
+                tree.setLazyDelete(true);
+            }
+            if (variant.cacheCapacity > 0) {
+                search(random.nextInt(Math.min(keyRange, HOT_KEYS))); // likely cached, and likely just moved
+                if (random.nextInt(CACHE_RESIZE_ODDS) == 0) {
+                    setSearchCache((random.nextInt(4) == 0) ? 0 : 1 + random.nextInt(2 * CACHE_CAPACITY));
+                }
+            }
+            if (variant.versioned && random.nextInt(SNAPSHOT_ODDS) == 0) {
+                takeOrCloseSnapshot(random);
+            }
+            if (variant.allTtl && random.nextInt(MASS_EXPIRY_ODDS) == 0 && keyRange >= 2 * EXPIRY_BATCH) {
+                expireAllButOne(random);
+            }
+            if (variant.ttl && random.nextInt(EXPIRE_ODDS) == 0) {
+                expire();
+            }
+            if (tree.activeBalancePolicy() != activePolicy) {
+                activePolicy = tree.activeBalancePolicy();
+                policySwitches++;
+            }
+
+            // Expired items count until the tree deletes them
+            check(tree.size() >= expected.size() - expired.size() && tree.size() <= expected.size(),
+                    "size() returned " + tree.size());
+            check(tree.valueCount() >= expectedValueCount - expiredValueCount
+                    && tree.valueCount() <= expectedValueCount, "valueCount() returned " + tree.valueCount());
+            String min = firstVisibleValue(expected);
+            check(equal(tree.min(), min), "min() returned " + tree.min() + " instead of " + min);
+            String max = firstVisibleValue(expected.descendingMap());
+            check(equal(tree.max(), max), "max() returned " + tree.max() + " instead of " + max);
+            if (variant.versioned) {
+                check(versionedTree.size() == expected.size(), "the versioned tree's size() returned " + versionedTree.size());
+                check(equal(versionedTree.min(), min), "the versioned tree's min() returned " + versionedTree.min());
+                check(equal(versionedTree.max(), max), "the versioned tree's max() returned " + versionedTree.max());
+            }
+            if (variant.compactTree) {
+                check(compactTree.size() == expected.size(), "the compact tree's size() returned " + compactTree.size());
+                check(compactTree.empty() == expected.isEmpty(), "the compact tree's empty() returned " + compactTree.empty());
+                check(equal(compactTree.min(), min), "the compact tree's min() returned " + compactTree.min());
+                check(equal(compactTree.max(), max), "the compact tree's max() returned " + compactTree.max());
+            }
+            if (variant.longKeys) {
+                check(longTree.size() == expected.size(), "the long tree's size() returned " + longTree.size());
+                check(equal(longTree.min(), min), "the long tree's min() returned " + longTree.min());
+                check(equal(longTree.max(), max), "the long tree's max() returned " + longTree.max());
+                check(long128Tree.size() == expected.size(), "the 128-bit tree's size() returned " + long128Tree.size());
+                check(equal(long128Tree.min(), min), "the 128-bit tree's min() returned " + long128Tree.min());
+                check(equal(long128Tree.max(), max), "the 128-bit tree's max() returned " + long128Tree.max());
+            }
+            if ((operationIndex + 1) % validateInterval == 0) {
+                if (variant.hashed) {
+                    merge(random);
+                }
+                validate();
+                if (variant.hashed) {
+                    checkHashes(random);
+                }
+                if (variant.versioned) {
+                    checkSnapshots(random);
+                }
+            }
+            if ((operationIndex + 1) % PROGRESS_INTERVAL == 0) {
+                System.out.println("  " + (operationIndex + 1) + " operations, size " + tree.size());
+            }
+        }
+        validate();
+        if (variant.versioned) {
+            checkSnapshots(random);
+            while (!snapshots.isEmpty()) {
+                closeSnapshot(snapshots.remove(snapshots.size() - 1), random);
+            }
+        }
+        if (variant.cacheCapacity > 0) {
+            setSearchCache(0);
+            check(cacheHitCount > 0 || operations < CACHE_RESIZE_ODDS, "the search cache was never hit");
+        }
+        if (variant.phased && operations >= cycle) {
+            check(policySwitches >= 2, "the ADAPTIVE policy switched only " + policySwitches + " times");
+        }
+
+        if (variant.lazy) {
+            tree.rebalance();
+            check(tree.tombstoneCount() == 0, "rebalance() left " + tree.tombstoneCount() + " tombstones");
+            validate();
+        }
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format("  passed in %.1f s, worst height %d at size %d (%.2f * log2(n + 1))%s",
+                seconds, worstHeight, worstHeightSize, worstHeightRatio,
+                variant.phased ? ", " + policySwitches + " policy switches" : "")
+                + (variant.lazy ? ", " + compactedCount + " tombstones compacted, " + rebalanceCount + " rebuilds" : "")
+                + (variant.ttl ? ", " + expiredCount + " items expired" : "")
+                + (variant.hashed ? ", " + mergeCount + " merges" : "")
+                + (variant.cacheCapacity > 0 ? ", " + cacheHitCount + " cache hits" : "")
+                + (variant.versioned ? ", " + snapshotCount + " snapshots" : ""));
+    }
+
+    /**
+     * Inserts an item, with a time to live if ttl is positive. Inserting over an expired key replaces its items.
+     */
+    private void insert(int key, String info, long ttl) {
+        int result = (ttl > 0) ? tree.insert(key, info, ttl) : tree.insert(key, info);
+        if (expired.contains(key)) {
+            removeExpected(key);
+        }
+        List<String> values = expected.get(key);
+        boolean inserted = (values == null) || variant.multimap;
+        if (values == null) {
+            values = new ArrayList<String>();
+            expected.put(key, values);
+        }
+        if (inserted) {
+            values.add(info);
+            expectedValueCount++;
+            if (ttl > 0) {
+                setDeadline(key, clock.millis() + ttl); // in a multimap, moves the deadline of the earlier values
+            }
+        }
+        check((result >= 0) == inserted, "insert(" + key + ", " + info + ") returned " + result);
+        if (variant.versioned) {
+            int versionedResult = versionedTree.insert(key, info);
+            checkMirrored("versioned tree", versionedResult, result, "insert(" + key + ", " + info + ")");
+            if (versionedResult >= 0) {
+                versionedEpoch++;
+            }
+        }
+        if (variant.compactTree) {
+            int compactResult = compactTree.insert(key, info);
+            checkMirrored("compact tree", compactResult, result, "insert(" + key + ", " + info + ")");
+        }
+        if (variant.longKeys) {
+            int longResult = longTree.insert(longKey(key), info);
+            checkMirrored("long tree", longResult, result, "insert(" + longKey(key) + ", " + info + ")");
+            int long128Result = long128Tree.insert(highWord(key), lowWord(key), info);
+            checkMirrored("128-bit tree", long128Result, result,
+                    "insert(" + highWord(key) + ", " + lowWord(key) + ", " + info + ")");
+        }
+    }
+
+    /**
+     * Deletes a key. Deleting an expired key succeeds or not depending on whether the tree deleted it already.
+     */
+    private void delete(int key) {
+        boolean wasExpired = expired.contains(key);
+        int result = tree.delete(key);
+        List<String> values = removeExpected(key);
+        check(wasExpired || (result >= 0) == (values != null), "delete(" + key + ") returned " + result);
+        if (variant.versioned) {
+            int versionedResult = versionedTree.delete(key);
+            checkMirrored("versioned tree", versionedResult, result, "delete(" + key + ")");
+            if (versionedResult >= 0) {
+                versionedEpoch++;
+            }
+        }
+        if (variant.compactTree) {
+            int compactResult = compactTree.delete(key);
+            checkMirrored("compact tree", compactResult, result, "delete(" + key + ")");
+        }
+        if (variant.longKeys) {
+            int longResult = longTree.delete(longKey(key));
+            checkMirrored("long tree", longResult, result, "delete(" + longKey(key) + ")");
+            int long128Result = long128Tree.delete(highWord(key), lowWord(key));
+            checkMirrored("128-bit tree", long128Result, result, "delete(" + highWord(key) + ", " + lowWord(key) + ")");
+        }
+    }
+
+    private void deleteValue(int key, String info) {
+        boolean wasExpired = expired.contains(key);
+        int result = tree.delete(key, info);
+        List<String> values = expected.get(key);
+        boolean deleted = (values != null) && values.remove(info);
+        if (deleted) {
+            expectedValueCount--;
+            if (wasExpired) {
+                expiredValueCount--;
+            }
+            if (values.isEmpty()) {
+                removeExpected(key);
+            }
+        }
+        check((wasExpired && deleted) || (result >= 0) == deleted,
+                "delete(" + key + ", " + info + ") returned " + result);
+    }
+
+    /**
+     * Removes a key from the expected map, along with its deadline.
+     *
+     * @return the key's values, or null if it was not expected
+     */
+    private List<String> removeExpected(int key) {
+        List<String> values = expected.remove(key);
+        if (values != null) {
+            expectedValueCount -= values.size();
+            if (expired.remove(key)) {
+                expiredValueCount -= values.size();
+            }
+        }
+        clearDeadline(key);
+        return values;
+    }
+
+    private void setDeadline(int key, long deadline) {
+        clearDeadline(key);
+        deadlines.put(key, deadline);
+        List<Integer> keys = keysByDeadline.get(deadline);
+        if (keys == null) {
+            keys = new ArrayList<Integer>();
+            keysByDeadline.put(deadline, keys);
+        }
+        keys.add(key);
+    }
+
+    private void clearDeadline(int key) {
+        Long deadline = deadlines.remove(key);
+        if (deadline != null) {
+            List<Integer> keys = keysByDeadline.get(deadline); // null once the key expired
+            if (keys != null && keys.remove((Integer) key) && keys.isEmpty()) {
+                keysByDeadline.remove(deadline);
+            }
+        }
+    }
+
+    /**
+     * Moves the keys whose deadline passed by the clock's current time to the expired set.
+     */
+    private void expireModel() {
+        while (!keysByDeadline.isEmpty() && keysByDeadline.firstKey() <= clock.millis()) {
+            for (int key : keysByDeadline.pollFirstEntry().getValue()) {
+                expired.add(key);
+                expiredValueCount += expected.get(key).size();
+            }
+        }
+    }
+
+    /**
+     * Deletes every expired item from the tree and the model, after which they must agree exactly.
+     */
+    private void expire() {
+        int expiredKeyCount = expired.size();
+        int result = tree.expire();
+        check(result >= 0 && result <= expiredKeyCount,
+                "expire() returned " + result + " with " + expiredKeyCount + " expired keys");
+        for (int key : new ArrayList<Integer>(expired)) {
+            removeExpected(key);
+        }
+        check(tree.size() == expected.size(), "size() returned " + tree.size() + " after expire()");
+        check(tree.valueCount() == expectedValueCount, "valueCount() returned " + tree.valueCount() + " after expire()");
+        expiredCount += result;
+    }
+
+    /**
+     * Diffs the tree with another hashed tree, then merges the other tree in and updates the model the same way.
+     * With a time to live, the other tree is a random one holding some of the same keys, part of them with a
+     * time to live and expired by the other tree's clock, so that diff walks both trees. Otherwise it is a copy
+     * of the tree with a few keys added, deleted or changed, so that diff skips the ranges which agree.
+     * The resolver keeps this tree's info, takes the other tree's with its remaining time to live, or combines
+     * both under this tree's deadline, depending on the key.
+     */
+    private void merge(Random random) {
+        FakeClock otherClock = new FakeClock(clock.millis() + random.nextInt(2 * ttlRange) - ttlRange);
+        WAVLTree other = new WAVLTree(new WAVLTree.Options().hashed());
+        other.setClock(otherClock);
+        TreeMap<Integer, String> otherInfo = new TreeMap<Integer, String>();
+        Map<Integer, Long> otherDeadlines = new HashMap<Integer, Long>();
+        if (variant.ttl) {
+            int otherSize = random.nextInt(Math.min(keyRange, MAX_MERGED_KEYS) + 1);
+            for (int j = 0; j < otherSize; j++) {
+                int key = random.nextInt(keyRange);
+                List<String> values = visibleValues(key);
+                String info = (values != null && random.nextBoolean()) ? values.get(0) : key + "'";
+                if (random.nextBoolean()) {
+                    long ttl = 1 + random.nextInt(ttlRange);
+                    if (other.insert(key, info, ttl) >= 0) {
+                        otherInfo.put(key, info);
+                        otherDeadlines.put(key, otherClock.millis() + ttl);
+                    }
+                } else if (other.insert(key, info) >= 0) {
+                    otherInfo.put(key, info);
+                }
+            }
+            otherClock.advance(random.nextInt(ttlRange)); // expires some of the other tree's items
+            long otherNow = otherClock.millis();
+            for (int key : new ArrayList<Integer>(otherInfo.keySet())) {
+                Long deadline = otherDeadlines.get(key);
+                if (deadline != null && deadline <= otherNow) {
+                    otherInfo.remove(key);
+                }
+            }
+        } else {
+            // A copy which differs in a few keys, so that diff skips most key ranges by their hashes
+            for (Map.Entry<Integer, List<String>> entry : expected.entrySet()) {
+                otherInfo.put(entry.getKey(), entry.getValue().get(0));
+            }
+            int changeCount = random.nextInt(MAX_COPY_CHANGES + 1);
+            for (int j = 0; j < changeCount; j++) {
+                int key = random.nextInt(keyRange);
+                if (otherInfo.containsKey(key) && random.nextBoolean()) {
+                    otherInfo.remove(key);
+                } else {
+                    otherInfo.put(key, key + "'");
+                }
+            }
+            for (Map.Entry<Integer, String> entry : otherInfo.descendingMap().entrySet()) {
+                other.insert(entry.getKey(), entry.getValue());
+            }
+        }
+        long otherNow = otherClock.millis();
+
+        // Expected differences between the visible items of both trees
+        final List<String> expectedDiff = new ArrayList<String>();
+        TreeSet<Integer> keys = new TreeSet<Integer>(otherInfo.keySet());
+        keys.addAll(expected.keySet());
+        for (int key : keys) {
+            List<String> values = visibleValues(key);
+            String info = (values != null) ? values.get(0) : null;
+            String otherValue = otherInfo.get(key);
+            if (info == null && otherValue != null) {
+                expectedDiff.add("inserted " + key + " " + otherValue);
+            } else if (info != null && otherValue == null) {
+                expectedDiff.add("deleted " + key + " " + info);
+            } else if (info != null && !info.equals(otherValue)) {
+                expectedDiff.add("changed " + key + " " + info + " " + otherValue);
+            }
+        }
+        List<String> diff = new ArrayList<String>();
+        tree.diff(other, diffRecorder(diff));
+        check(diff.equals(expectedDiff), "diff() reported " + diff.size() + " differences instead of "
+                + expectedDiff.size() + firstDifference(diff, expectedDiff));
+        if (!variant.ttl) {
+            check((tree.rootHash() == other.rootHash()) == expectedDiff.isEmpty(),
+                    "rootHash() is " + tree.rootHash() + " and the other tree's is " + other.rootHash() + " with "
+                            + expectedDiff.size() + " differences");
+        }
+
+        int result = tree.merge(other, new WAVLTree.ConflictResolver() {
+            public String resolve(int k, String info, String otherInfo) {
+                return resolveConflict(k, info, otherInfo);
+            }
+        });
+        int updateCount = 0;
+        for (int key : keys) {
+            List<String> values = visibleValues(key);
+            String info = (values != null) ? values.get(0) : null;
+            String otherValue = otherInfo.get(key);
+            if (otherValue == null || otherValue.equals(info)) {
+                continue;
+            }
+            String resolved = (info == null) ? otherValue : resolveConflict(key, info, otherValue);
+            if (resolved.equals(info)) {
+                continue;
+            }
+            if (info == null) {
+                removeExpected(key); // an expired item is replaced
+                expected.put(key, new ArrayList<String>());
+                expectedValueCount++;
+            }
+            expected.get(key).clear();
+            expected.get(key).add(resolved);
+            Long otherDeadline = otherDeadlines.get(key);
+            if (resolved.equals(otherValue)) {
+                // The other tree's item carries its remaining time to live over, if it has one
+                if (otherDeadline != null) {
+                    setDeadline(key, clock.millis() + Math.max(1, otherDeadline - otherNow));
+                } else {
+                    clearDeadline(key);
+                }
+            }
+            updateCount++;
+        }
+        check(result == updateCount, "merge() returned " + result + " instead of " + updateCount);
+        mergeCount++;
+    }
+
+    private static String resolveConflict(int key, String info, String otherInfo) {
+        switch (Math.abs(key % 3)) {
+            case 0:
+                return info;
+            case 1:
+                return otherInfo;
+            default:
+                return info + "+" + otherInfo;
+        }
+    }
+
+    /**
+     * Returns a visitor which describes every difference it is told about in a list, in the form the tests expect.
+     */
+    private static WAVLTree.DiffVisitor diffRecorder(final List<String> diff) {
+        return new WAVLTree.DiffVisitor() {
+            public void inserted(int k, String info) {
+                diff.add("inserted " + k + " " + info);
+            }
+
+            public void deleted(int k, String info) {
+                diff.add("deleted " + k + " " + info);
+            }
+
+            public void changed(int k, String info, String otherInfo) {
+                diff.add("changed " + k + " " + info + " " + otherInfo);
+            }
+        };
+    }
+
+    private static String firstDifference(List<String> actual, List<String> expected) {
+        for (int j = 0; j < Math.max(actual.size(), expected.size()); j++) {
+            String a = (j < actual.size()) ? actual.get(j) : null;
+            String b = (j < expected.size()) ? expected.get(j) : null;
+            if (!equal(a, b)) {
+                return ", first " + a + " instead of " + b;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Checks rootHash() against a tree built from the expected items in another order, rangeHash() of a random
+     * range against a tree holding only that range, and the rangeHash() of two halves against rootHash().
+     * Called after validate(), once expired items were deleted.
+     */
+    private void checkHashes(Random random) {
+        check(tree.rootHash() == hashedCopy(Integer.MIN_VALUE, Integer.MAX_VALUE).rootHash(),
+                "rootHash() differs from the hash of a tree holding the same items");
+        int split = random.nextInt(keyRange);
+        check(tree.rangeHash(Integer.MIN_VALUE, split) + tree.rangeHash(split + 1, Integer.MAX_VALUE)
+                == tree.rootHash(), "rangeHash() of the keys up to and after " + split + " don't add up to rootHash()");
+        int low = random.nextInt(keyRange);
+        int high = low + random.nextInt(keyRange - low);
+        check(tree.rangeHash(low, high) == hashedCopy(low, high).rootHash(),
+                "rangeHash(" + low + ", " + high + ") differs from the hash of a tree holding only that range");
+    }
+
+    /**
+     * Builds a hashed tree holding the expected items in a key range, inserted in descending key order.
+     */
+    private WAVLTree hashedCopy(int low, int high) {
+        WAVLTree copy = new WAVLTree(new WAVLTree.Options().hashed());
+        for (Map.Entry<Integer, List<String>> entry : expected.subMap(low, true, high, true).descendingMap().entrySet()) {
+            copy.insert(entry.getKey(), entry.getValue().get(0));
+        }
+        return copy;
+    }
+
+    /**
+     * Compares keysInRange() and infoInRange() with the expected items in a key range which did not expire.
+     */
+    private void searchRange(int low, int high) {
+        List<Integer> keys = new ArrayList<Integer>();
+        List<String> info = new ArrayList<String>();
+        for (Map.Entry<Integer, List<String>> entry : expected.subMap(low, true, high, true).entrySet()) {
+            if (!expired.contains(entry.getKey())) {
+                for (String value : entry.getValue()) {
+                    keys.add(entry.getKey());
+                    info.add(value);
+                }
+            }
+        }
+        int[] treeKeys = tree.keysInRange(low, high);
+        String[] treeInfo = tree.infoInRange(low, high);
+        boolean keysEqual = treeKeys.length == keys.size();
+        for (int j = 0; keysEqual && j < treeKeys.length; j++) {
+            keysEqual = treeKeys[j] == keys.get(j);
+        }
+        check(keysEqual, "keysInRange(" + low + ", " + high + ") returned " + Arrays.toString(treeKeys));
+        check(Arrays.equals(treeInfo, info.toArray(new String[0])),
+                "infoInRange(" + low + ", " + high + ") returned " + Arrays.toString(treeInfo));
+    }
+
+    /**
+     * Replaces the search cache, after checking that the hits and misses of the previous one add up to the
+     * searches since it was set. A search of an empty tree doesn't reach the cache.
+     */
+    private void setSearchCache(int capacity) {
+        long hits = tree.searchCacheHits();
+        long misses = tree.searchCacheMisses();
+        long searches = (cacheCapacity > 0) ? cachedSearchCount : 0;
+        check(hits >= 0 && misses >= 0 && hits + misses == searches, "the search cache counted " + hits + " hits and "
+                + misses + " misses in " + searches + " searches");
+        cacheHitCount += hits;
+        tree.setSearchCache(capacity);
+        cacheCapacity = capacity;
+        cachedSearchCount = 0;
+    }
+
+    /**
+     * Compares the result of an update of a tree which follows the tree under test with the tree's. Both
+     * rebalance bottom-up by the same WAVL rules, so their counts of rebalancing operations must agree as well.
+     */
+    private void checkMirrored(String name, int mirroredResult, int result, String operation) {
+        boolean sameCount = variant.mode == WAVLTree.RebalanceMode.BOTTOM_UP;
+        check(sameCount ? mirroredResult == result : (mirroredResult >= 0) == (result >= 0),
+                "the " + name + "'s " + operation + " returned " + mirroredResult + " instead of " + result);
+    }
+
+    /**
+     * Takes a snapshot of the versioned tree along with a copy of the model, or checks and closes a held one.
+     */
+    private void takeOrCloseSnapshot(Random random) {
+        if (snapshots.size() == MAX_SNAPSHOTS || (!snapshots.isEmpty() && random.nextBoolean())) {
+            closeSnapshot(snapshots.remove(random.nextInt(snapshots.size())), random);
+            return;
+        }
+        TreeMap<Integer, String> frozen = new TreeMap<Integer, String>();
+        for (Map.Entry<Integer, List<String>> entry : expected.entrySet()) {
+            frozen.put(entry.getKey(), entry.getValue().get(0));
+        }
+        HeldSnapshot held = new HeldSnapshot(versionedTree.snapshot(), frozen);
+        check(held.snapshot.epoch() == versionedEpoch,
+                "a snapshot's epoch() returned " + held.snapshot.epoch() + " after " + versionedEpoch + " updates");
+        snapshots.add(held);
+        snapshotCount++;
+    }
+
+    private void closeSnapshot(HeldSnapshot held, Random random) {
+        checkSnapshot(held, random);
+        held.snapshot.close();
+        boolean rejected = false;
+        try {
+            held.snapshot.search(0);
+        } catch (IllegalStateException e) {
+            rejected = true;
+        }
+        check(rejected, "search() of a closed snapshot didn't throw");
+    }
+
+    /**
+     * Compares a held snapshot with the copy of the model taken along with it.
+     */
+    private void checkSnapshot(HeldSnapshot held, Random random) {
+        VersionedWAVLTree.Snapshot snapshot = held.snapshot;
+        TreeMap<Integer, String> frozen = held.frozen;
+        String name = "the snapshot of epoch " + snapshot.epoch();
+        check(snapshot.size() == frozen.size(), name + " has size() " + snapshot.size() + " instead of " + frozen.size());
+        check(snapshot.empty() == frozen.isEmpty(), name + " has empty() " + snapshot.empty());
+        String min = frozen.isEmpty() ? null : frozen.firstEntry().getValue();
+        check(equal(snapshot.min(), min), name + " has min() " + snapshot.min() + " instead of " + min);
+        String max = frozen.isEmpty() ? null : frozen.lastEntry().getValue();
+        check(equal(snapshot.max(), max), name + " has max() " + snapshot.max() + " instead of " + max);
+        for (int j = 0; j < SNAPSHOT_SEARCHES; j++) {
+            int key = random.nextInt(keyRange);
+            check(equal(snapshot.search(key), frozen.get(key)),
+                    name + " has search(" + key + ") " + snapshot.search(key) + " instead of " + frozen.get(key));
+        }
+        int[] keys = new int[frozen.size()];
+        int i = 0;
+        for (int key : frozen.keySet()) {
+            keys[i++] = key;
+        }
+        check(Arrays.equals(snapshot.keysToArray(), keys), name + "'s keysToArray() differs from its copy");
+        check(Arrays.equals(snapshot.infoToArray(), frozen.values().toArray(new String[0])),
+                name + "'s infoToArray() differs from its copy");
+    }
+
+    /**
+     * Checks every held snapshot, then diffs each of them with the next one and with the latest version.
+     */
+    private void checkSnapshots(Random random) {
+        TreeMap<Integer, String> latest = new TreeMap<Integer, String>();
+        for (Map.Entry<Integer, List<String>> entry : expected.entrySet()) {
+            latest.put(entry.getKey(), entry.getValue().get(0));
+        }
+        VersionedWAVLTree.Snapshot latestSnapshot = versionedTree.snapshot();
+        try {
+            for (int j = 0; j < snapshots.size(); j++) {
+                HeldSnapshot held = snapshots.get(j);
+                checkSnapshot(held, random);
+                checkDiff(held.snapshot, held.frozen, latestSnapshot, latest);
+                if (j + 1 < snapshots.size()) {
+                    HeldSnapshot next = snapshots.get(j + 1);
+                    checkDiff(held.snapshot, held.frozen, next.snapshot, next.frozen);
+                }
+            }
+        } finally {
+            latestSnapshot.close();
+        }
+    }
+
+    /**
+     * Compares Snapshot.diff() of two snapshots with the differences between their copies of the model.
+     */
+    private void checkDiff(VersionedWAVLTree.Snapshot snapshot, TreeMap<Integer, String> frozen,
+                           VersionedWAVLTree.Snapshot other, TreeMap<Integer, String> otherFrozen) {
+        List<String> expectedDiff = new ArrayList<String>();
+        TreeSet<Integer> keys = new TreeSet<Integer>(frozen.keySet());
+        keys.addAll(otherFrozen.keySet());
+        for (int key : keys) {
+            String info = frozen.get(key);
+            String otherInfo = otherFrozen.get(key);
+            if (info == null) {
+                expectedDiff.add("inserted " + key + " " + otherInfo);
+            } else if (otherInfo == null) {
+                expectedDiff.add("deleted " + key + " " + info);
+            } else if (!info.equals(otherInfo)) {
+                expectedDiff.add("changed " + key + " " + info + " " + otherInfo);
+            }
+        }
+        List<String> diff = new ArrayList<String>();
+        snapshot.diff(other, diffRecorder(diff));
+        check(diff.equals(expectedDiff), "diff() of the snapshots of epochs " + snapshot.epoch() + " and "
+                + other.epoch() + " reported " + diff.size() + " differences instead of " + expectedDiff.size()
+                + firstDifference(diff, expectedDiff));
+    }
+
+    /**
+     * Leaves between one and two batches of items in the tree, all with a time to live, then moves the clock
+     * past all of their deadlines and reinserts the key whose deadline is the latest. The update first deletes
+     * a batch of expired items, which reaches that key last, so the reinsertion finds it expired and deletes
+     * it before reusing its node. Half of the time exactly one batch plus the key are left, so the tree holds
+     * no items but tombstones at that point.
+     */
+    private void expireAllButOne(Random random) {
+        expire();
+        int itemCount = EXPIRY_BATCH + 1 + (random.nextBoolean() ? 0 : random.nextInt(EXPIRY_BATCH));
+        while (expected.size() > itemCount - 1) {
+            delete(expected.firstKey() + random.nextInt(expected.lastKey() - expected.firstKey() + 1));
+        }
+        while (expected.size() < itemCount - 1) {
+            int key = random.nextInt(keyRange);
+            if (!expected.containsKey(key)) {
+                insert(key, Integer.toString(key), 1 + random.nextInt(ttlRange));
+            }
+        }
+        int lastKey = random.nextInt(keyRange);
+        while (expected.containsKey(lastKey)) {
+            lastKey = random.nextInt(keyRange);
+        }
+        long lastDeadline = clock.millis();
+        for (long deadline : deadlines.values()) {
+            lastDeadline = Math.max(lastDeadline, deadline);
+        }
+        long ttl = lastDeadline - clock.millis() + 1;
+        insert(lastKey, Integer.toString(lastKey), ttl);
+
+        clock.advance(ttl);
+        expireModel();
+        check(expired.size() == itemCount, expired.size() + " of " + itemCount + " items expired");
+        insert(lastKey, lastKey + "'", 1 + random.nextInt(ttlRange));
+    }
+
+    /**
+     * Returns the values which queries must return for a key, which are none once it expired.
+     *
+     * @return the key's values, or null if it is not expected or expired
+     */
+    private List<String> visibleValues(int key) {
+        return expired.contains(key) ? null : expected.get(key);
+    }
+
+    /**
+     * Returns the first value of the first key in a map's order which did not expire.
+     */
+    private String firstVisibleValue(Map<Integer, List<String>> map) {
+        for (Map.Entry<Integer, List<String>> entry : map.entrySet()) {
+            if (!expired.contains(entry.getKey())) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private void compact(int maxNodes) {
+        int tombstoneCount = tree.tombstoneCount();
+        int removedCount = tree.compact(maxNodes);
+        check(removedCount >= 0 && removedCount <= Math.min(maxNodes, tombstoneCount),
+                "compact(" + maxNodes + ") returned " + removedCount + " with " + tombstoneCount + " tombstones");
+        check(tree.tombstoneCount() == tombstoneCount - removedCount,
+                "compact(" + maxNodes + ") left " + tree.tombstoneCount() + " of " + tombstoneCount + " tombstones"
+                        + " after removing " + removedCount);
+        compactedCount += removedCount;
+    }
+
+    private void search(int key) {
+        List<String> values = visibleValues(key);
+        if (tree.size() > 0) {
+            cachedSearchCount++;
+        }
+        String result = tree.search(key);
+        check(equal(result, (values != null) ? values.get(0) : null), "search(" + key + ") returned " + result);
+        if (variant.versioned) {
+            String versionedResult = versionedTree.search(key);
+            check(equal(versionedResult, result), "the versioned tree's search(" + key + ") returned " + versionedResult);
+        }
+        if (variant.compactTree) {
+            String compactResult = compactTree.search(key);
+            check(equal(compactResult, result), "the compact tree's search(" + key + ") returned " + compactResult);
+        }
+        if (variant.longKeys) {
+            String longResult = longTree.search(longKey(key));
+            check(equal(longResult, result), "the long tree's search(" + longKey(key) + ") returned " + longResult);
+            String long128Result = long128Tree.search(highWord(key), lowWord(key));
+            check(equal(long128Result, result),
+                    "the 128-bit tree's search(" + highWord(key) + ", " + lowWord(key) + ") returned " + long128Result);
+        }
+        if (variant.multimap) {
+            String[] all = tree.searchAll(key);
+            check(Arrays.equals(all, (values != null) ? values.toArray(new String[0]) : new String[0]),
+                    "searchAll(" + key + ") returned " + Arrays.toString(all));
+            int count = tree.count(key);
+            check(count == ((values != null) ? values.size() : 0), "count(" + key + ") returned " + count);
+        }
+    }
+
+    /**
+     * Checks the tree's invariants and compares its full contents with the expected map.
+     * In a multimap, a key appears in keysToArray() once for each of its values, aligned with infoToArray().
+     * The arrays hold expired items which were not deleted yet, so a TTL tree deletes them first.
+     */
+    private void validate() {
+        if (variant.ttl) {
+            expire();
+        }
+        try {
+            tree.validate();
+        } catch (IllegalStateException e) {
+            fail("validate() failed: " + e.getMessage());
+        }
+
+        int[] keys = new int[expectedValueCount];
+        String[] info = new String[expectedValueCount];
+        int i = 0;
+        for (Map.Entry<Integer, List<String>> entry : expected.entrySet()) {
+            for (String value : entry.getValue()) {
+                keys[i] = entry.getKey();
+                info[i] = value;
+                i++;
+            }
+        }
+        check(Arrays.equals(keys, tree.keysToArray()), "keysToArray() differs from the expected keys");
+        check(Arrays.equals(info, tree.infoToArray()), "infoToArray() differs from the expected info");
+        if (variant.versioned) {
+            check(Arrays.equals(keys, versionedTree.keysToArray()), "the versioned tree's keysToArray() differs");
+            check(Arrays.equals(info, versionedTree.infoToArray()), "the versioned tree's infoToArray() differs");
+        }
+        if (variant.compactTree) {
+            check(Arrays.equals(keys, compactTree.keysToArray()), "the compact tree's keysToArray() differs");
+            check(Arrays.equals(info, compactTree.infoToArray()), "the compact tree's infoToArray() differs");
+        }
+        if (variant.longKeys) {
+            // A 128-bit key takes two elements, its high word followed by its low word
+            long[] longKeys = new long[keys.length];
+            long[] long128Keys = new long[2 * keys.length];
+            for (int j = 0; j < keys.length; j++) {
+                longKeys[j] = longKey(keys[j]);
+                long128Keys[2 * j] = highWord(keys[j]);
+                long128Keys[2 * j + 1] = lowWord(keys[j]);
+            }
+            check(Arrays.equals(longKeys, longTree.keysToArray()), "the long tree's keysToArray() differs");
+            check(Arrays.equals(info, longTree.infoToArray()), "the long tree's infoToArray() differs");
+            check(Arrays.equals(long128Keys, long128Tree.keysToArray()), "the 128-bit tree's keysToArray() differs");
+            check(Arrays.equals(info, long128Tree.infoToArray()), "the 128-bit tree's infoToArray() differs");
+        }
+
+        int height = tree.height();
+        if (tree.size() > 0) {
+            double ratio = height / (Math.log(tree.size() + 1) / Math.log(2));
+            if (ratio > worstHeightRatio) {
+                worstHeightRatio = ratio;
+            }
+        }
+        if (height > worstHeight) {
+            worstHeight = height;
+            worstHeightSize = tree.size();
+        }
+    }
+
+    /**
+     * Maps a key to a long in the same order, spreading the key range over all longs.
+     */
+    private long longKey(int key) {
+        return spread(key, keyRange);
+    }
+
+    /**
+     * Maps a key's upper bits to the high word of a 128-bit key in the same order, spread over all longs.
+     */
+    private long highWord(int key) {
+        return spread(key >> 2, (keyRange + 3) >> 2);
+    }
+
+    /**
+     * Maps a key's two lowest bits to the low word of a 128-bit key, in unsigned order.
+     */
+    private static long lowWord(int key) {
+        return LOW_WORDS[key & 3];
+    }
+
+    /**
+     * Maps a value from 0 to range - 1 to a long in the same order, from Long.MIN_VALUE up in even steps.
+     */
+    private static long spread(int value, int range) {
+        return Long.MIN_VALUE + value * Long.divideUnsigned(-1L, range);
+    }
+
+    private void check(boolean condition, String message) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    private void fail(String message) {
+        throw new IllegalStateException("Seed " + seed + ", operation " + operationIndex + ": " + message);
+    }
+
+    private static boolean equal(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    /**
+     * Updates a VersionedWAVLTree from this thread while reader threads take snapshots of it. Before each
+     * update, the writer records the sum of the hashes of the items of the version it is about to publish,
+     * and every snapshot must hold sorted keys whose items add up to the sum recorded for its epoch.
+     */
+    private static void runConcurrentReaders(long writes, final long seed, final int keyRange) {
+        System.out.println("VersionedWAVLTree with " + READER_THREADS + " readers: " + writes + " writes, seed " + seed
+                + ", key range " + keyRange);
+        final VersionedWAVLTree tree = new VersionedWAVLTree(READER_THREADS - 1); // readers also wait for a slot
+        final AtomicLongArray checksums = new AtomicLongArray((int) writes + 1); // indexed by epoch
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final long[] snapshotCounts = new long[READER_THREADS];
+        Thread[] readers = new Thread[READER_THREADS];
+        long startNanos = System.nanoTime();
+        for (int r = 0; r < READER_THREADS; r++) {
+            final int reader = r;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get() && failure.get() == null) {
+                        VersionedWAVLTree.Snapshot snapshot = tree.snapshot();
+                        try {
+                            String error = checkConcurrentSnapshot(snapshot, checksums.get((int) snapshot.epoch()));
+                            if (error != null) {
+                                failure.compareAndSet(null, "the snapshot of epoch " + snapshot.epoch() + " " + error);
+                            }
+                        } finally {
+                            snapshot.close();
+                        }
+                        snapshotCounts[reader]++;
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        Random random = new Random(seed);
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        long checksum = 0;
+        long epoch = 0;
+        for (long j = 0; j < writes && failure.get() == null; j++) {
+            int key = random.nextInt(keyRange);
+            String info = Integer.toString(key + keyRange * random.nextInt(MULTIMAP_VALUES));
+            boolean insert = (j % (keyRange * 8L) < keyRange * 4L) ? random.nextInt(10) < 7 : random.nextInt(10) < 3;
+            int result;
+            if (insert) {
+                boolean inserted = !expected.containsKey(key);
+                if (inserted) {
+                    expected.put(key, info);
+                    checksum += itemHash(key, info);
+                    checksums.set((int) ++epoch, checksum); // recorded before readers can see the version
+                }
+                result = tree.insert(key, info);
+                if ((result >= 0) != inserted) {
+                    failure.compareAndSet(null, "insert(" + key + ", " + info + ") returned " + result);
+                }
+            } else {
+                String removed = expected.remove(key);
+                if (removed != null) {
+                    checksum -= itemHash(key, removed);
+                    checksums.set((int) ++epoch, checksum);
+                }
+                result = tree.delete(key);
+                if ((result >= 0) != (removed != null)) {
+                    failure.compareAndSet(null, "delete(" + key + ") returned " + result);
+                }
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the readers", e);
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Seed " + seed + ": " + failure.get());
+        }
+        long snapshotCount = 0;
+        for (long count : snapshotCounts) {
+            snapshotCount += count;
+        }
+        System.out.println(String.format("  passed in %.1f s, %d snapshots checked, %d writes published",
+                (System.nanoTime() - startNanos) / 1e9, snapshotCount, epoch));
+    }
+
+    /**
+     * Checks a snapshot taken while the tree was updated against the checksum recorded for its epoch.
+     *
+     * @return a description of the first inconsistency found, or null if there is none
+     */
+    private static String checkConcurrentSnapshot(VersionedWAVLTree.Snapshot snapshot, long checksum) {
+        int[] keys = snapshot.keysToArray();
+        String[] info = snapshot.infoToArray();
+        if (keys.length != snapshot.size() || info.length != snapshot.size()) {
+            return "holds " + keys.length + " keys and " + info.length + " info values, but its size() is "
+                    + snapshot.size();
+        }
+        long sum = 0;
+        for (int j = 0; j < keys.length; j++) {
+            if (j > 0 && keys[j - 1] >= keys[j]) {
+                return "holds key " + keys[j] + " after " + keys[j - 1];
+            }
+            if (!equal(snapshot.search(keys[j]), info[j])) {
+                return "has search(" + keys[j] + ") " + snapshot.search(keys[j]) + " instead of " + info[j];
+            }
+            sum += itemHash(keys[j], info[j]);
+        }
+        if (sum != checksum) {
+            return "holds items which don't add up to the checksum recorded for it";
+        }
+        String min = (keys.length > 0) ? info[0] : null;
+        String max = (keys.length > 0) ? info[info.length - 1] : null;
+        if (!equal(snapshot.min(), min) || !equal(snapshot.max(), max)) {
+            return "has min() " + snapshot.min() + " and max() " + snapshot.max() + " instead of " + min + " and " + max;
+        }
+        return null;
+    }
+
+    private static long itemHash(int key, String info) {
+        return key * 0x9E3779B97F4A7C15L + info.hashCode();
+    }
+
+    /**
+     * Updates a WAVLTree which publishes to a change feed from this thread while follower threads poll the
+     * feed. The writer records every event before the update which publishes it, so followers can check the
+     * events they get, and the steady followers' replicas are compared with the tree at the end.
+     */
+    private static void runChangeFeed(long writes, final long seed, int keyRange) {
+        System.out.println("WAVLChangeFeed with " + STEADY_FOLLOWERS + " steady and " + CHURNING_FOLLOWERS
+                + " churning followers: " + writes + " writes, seed " + seed + ", key range " + keyRange);
+        final WAVLChangeFeed feed = new WAVLChangeFeed(FEED_CAPACITY);
+        WAVLTree tree = new WAVLTree();
+        tree.setChangeFeed(feed);
+        final FeedEvents events = new FeedEvents((int) writes);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final FeedFollower[] steadyFollowers = new FeedFollower[STEADY_FOLLOWERS];
+        final long[] churnCounts = new long[CHURNING_FOLLOWERS];
+        Thread[] threads = new Thread[STEADY_FOLLOWERS + CHURNING_FOLLOWERS];
+        long startNanos = System.nanoTime();
+        for (int f = 0; f < STEADY_FOLLOWERS; f++) {
+            final FeedFollower follower = new FeedFollower(events, failure, 0);
+            final WAVLChangeFeed.Subscription subscription = feed.subscribe(); // before any event is published
+            final Random random = new Random(seed + f);
+            steadyFollowers[f] = follower;
+            threads[f] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // The writer is done once all of its events were published, then the rest is drained
+                    while (failure.get() == null && (!done.get() || follower.received < events.count)) {
+                        if (random.nextInt(SLOW_POLL_ODDS) == 0) {
+                            LockSupport.parkNanos(random.nextInt(100000)); // lets the feed fill up
+                        }
+                        follower.checkLag(subscription.lag());
+                        if (subscription.poll(follower, 1 + random.nextInt(MAX_POLL_BATCH)) == 0) {
+                            Thread.yield();
+                        }
+                    }
+                    subscription.close();
+                }
+            });
+        }
+        for (int f = 0; f < CHURNING_FOLLOWERS; f++) {
+            final int churner = f;
+            final Random random = new Random(seed - f - 1);
+            threads[STEADY_FOLLOWERS + f] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get() && failure.get() == null) {
+                        long publishedBefore = feed.publishedCount();
+                        WAVLChangeFeed.Subscription subscription = feed.subscribe();
+                        FeedFollower follower = new FeedFollower(events, failure, publishedBefore);
+                        int followEvents = random.nextInt(MAX_FOLLOW_EVENTS);
+                        while (follower.received < followEvents && !done.get() && failure.get() == null) {
+                            follower.checkLag(subscription.lag());
+                            if (subscription.poll(follower, 1 + random.nextInt(MAX_POLL_BATCH)) == 0) {
+                                Thread.yield();
+                            }
+                        }
+                        subscription.close();
+                        churnCounts[churner]++;
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        Random random = new Random(seed);
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        for (long j = 0; j < writes && failure.get() == null; j++) {
+            int key = random.nextInt(keyRange);
+            String info = Integer.toString(key + keyRange * random.nextInt(MULTIMAP_VALUES));
+            boolean insert = (j % (keyRange * 8L) < keyRange * 4L) ? random.nextInt(10) < 7 : random.nextInt(10) < 3;
+            if (insert) {
+                boolean inserted = !expected.containsKey(key);
+                if (inserted) {
+                    expected.put(key, info);
+                    events.record(WAVLChangeFeed.ChangeType.INSERT, key, info); // before followers can poll it
+                }
+                int result = tree.insert(key, info);
+                if ((result >= 0) != inserted) {
+                    failure.compareAndSet(null, "insert(" + key + ", " + info + ") returned " + result);
+                }
+            } else {
+                String removed = expected.remove(key);
+                if (removed != null) {
+                    events.record(WAVLChangeFeed.ChangeType.DELETE, key, removed);
+                }
+                int result = tree.delete(key);
+                if ((result >= 0) != (removed != null)) {
+                    failure.compareAndSet(null, "delete(" + key + ") returned " + result);
+                }
+            }
+        }
+        done.set(true);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the followers", e);
+            }
+        }
+        if (failure.get() == null && feed.publishedCount() != events.count) {
+            failure.set("the feed published " + feed.publishedCount() + " events instead of " + events.count);
+        }
+        for (int f = 0; f < STEADY_FOLLOWERS && failure.get() == null; f++) {
+            TreeMap<Integer, String> replica = steadyFollowers[f].replica;
+            int[] keys = new int[replica.size()];
+            int i = 0;
+            for (int key : replica.keySet()) {
+                keys[i++] = key;
+            }
+            if (!Arrays.equals(keys, tree.keysToArray())
+                    || !Arrays.equals(replica.values().toArray(new String[0]), tree.infoToArray())) {
+                failure.set("the replica of steady follower " + f + " differs from the tree");
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Seed " + seed + ": " + failure.get());
+        }
+        long churnCount = 0;
+        for (long count : churnCounts) {
+            churnCount += count;
+        }
+        long maxLag = 0;
+        for (FeedFollower follower : steadyFollowers) {
+            maxLag = Math.max(maxLag, follower.maxLag);
+        }
+        System.out.println(String.format("  passed in %.1f s, %d events, %d subscriptions churned, largest lag %d",
+                (System.nanoTime() - startNanos) / 1e9, events.count, churnCount, maxLag));
+    }
+
+    /**
+     * Serves a tree on an address and checks the responses to pipelined batches of random requests against
+     * the results of the same requests on a local tree, then the handling of partial and malformed requests.
+     */
+    private static void runServer(SocketAddress address, long requests, long seed, int keyRange)
+            throws IOException, InterruptedException {
+        WAVLTreeServer server = new WAVLTreeServer(new WAVLTree(), address);
+        System.out.println("WAVLTreeServer on " + server.address() + ": " + requests + " requests, seed " + seed
+                + ", key range " + keyRange);
+        long startNanos = System.nanoTime();
+        WAVLTree tree = new WAVLTree(); // gets the same requests as the server's tree
+        Random random = new Random(seed);
+        try {
+            try (SocketChannel channel = SocketChannel.open(server.address())) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                byte[] opcodes = new byte[MAX_PIPELINE_DEPTH];
+                String[] expected = new String[MAX_PIPELINE_DEPTH];
+                long sent = 0;
+                while (sent < requests) {
+                    int depth = (int) Math.min(1 + random.nextInt(MAX_PIPELINE_DEPTH), requests - sent);
+                    for (int j = 0; j < depth; j++) {
+                        opcodes[j] = (byte) (WAVLTreeServer.INSERT + random.nextInt(WAVLTreeServer.MAX));
+                        expected[j] = sendRequest(opcodes[j], random.nextInt(keyRange), random, tree, out);
+                    }
+                    out.flush();
+                    for (int j = 0; j < depth; j++) {
+                        String response = readResponse(opcodes[j], in);
+                        if (!response.equals(expected[j])) {
+                            throw new IllegalStateException("Seed " + seed + ", request " + (sent + j) + ": opcode "
+                                    + opcodes[j] + " got " + response + " instead of " + expected[j]);
+                        }
+                    }
+                    sent += depth;
+                }
+                out.writeByte(WAVLTreeServer.MAX + 1);
+                out.flush();
+                checkServer(seed, in.read() < 0, "the server answered a request with an unknown opcode");
+            }
+
+            try (SocketChannel channel = SocketChannel.open(server.address())) {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                // A search followed by the first bytes of an insert, which must not hold up the search's answer
+                int key = keyRange; // no request above used it
+                out.writeByte(WAVLTreeServer.SEARCH);
+                out.writeInt(key);
+                out.writeByte(WAVLTreeServer.INSERT);
+                out.writeShort(key >>> 16);
+                out.flush();
+                final AtomicBoolean answered = new AtomicBoolean(false);
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            answered.set(WAVLTreeServer.readString(in) == null);
+                        } catch (IOException e) {
+                            // answered stays false
+                        }
+                    }
+                });
+                reader.start();
+                reader.join(PARTIAL_REQUEST_TIMEOUT_MILLIS);
+                checkServer(seed, answered.get(), "a partly sent request held up the answer to the search before it");
+                out.writeShort(key & 0xFFFF);
+                WAVLTreeServer.writeString(out, "partial");
+                out.flush();
+                int result = in.readInt();
+                checkServer(seed, result >= 0, "the insert of a new key sent in two parts returned " + result);
+                // A string too long to accept closes the connection rather than being buffered
+                out.writeByte(WAVLTreeServer.INSERT);
+                out.writeInt(key + 1);
+                out.writeInt(Integer.MAX_VALUE - 8);
+                out.flush();
+                checkServer(seed, in.read() < 0, "the server accepted an oversized string");
+            }
+
+            try (SocketChannel channel = SocketChannel.open(server.address())) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.writeByte(WAVLTreeServer.SEARCH);
+                out.writeInt(keyRange);
+                out.flush();
+                String info = WAVLTreeServer.readString(in);
+                checkServer(seed, "partial".equals(info), "after closing a malformed connection, the server found " + info);
+            }
+        } finally {
+            server.close();
+        }
+        System.out.println(String.format("  passed in %.1f s", (System.nanoTime() - startNanos) / 1e9));
+    }
+
+    private static void checkServer(long seed, boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("Seed " + seed + ": " + message);
+        }
+    }
+
+    /**
+     * Writes a request with random arguments, and applies it to a local tree.
+     *
+     * @return the response the server must send, in the form readResponse returns it
+     */
+    private static String sendRequest(byte opcode, int key, Random random, WAVLTree tree, DataOutputStream out)
+            throws IOException {
+        out.writeByte(opcode);
+        switch (opcode) {
+            case WAVLTreeServer.INSERT:
+                String info = (random.nextInt(8) == 0) ? null : "\u00e9" + key; // null info and multi-byte UTF-8
+                out.writeInt(key);
+                WAVLTreeServer.writeString(out, info);
+                return Integer.toString(tree.insert(key, info));
+            case WAVLTreeServer.SEARCH:
+                out.writeInt(key);
+                return String.valueOf(tree.search(key));
+            case WAVLTreeServer.DELETE:
+                out.writeInt(key);
+                return Integer.toString(tree.delete(key));
+            case WAVLTreeServer.RANGE:
+                int high = key + random.nextInt(MAX_REQUEST_RANGE);
+                out.writeInt(key);
+                out.writeInt(high);
+                return Arrays.toString(tree.keysInRange(key, high)) + Arrays.toString(tree.infoInRange(key, high));
+            case WAVLTreeServer.MIN:
+                return String.valueOf(tree.min());
+            default:
+                return String.valueOf(tree.max());
+        }
+    }
+
+    /**
+     * Reads the response to a request.
+     *
+     * @return the response as a string, in the form sendRequest returns it
+     */
+    private static String readResponse(byte opcode, DataInputStream in) throws IOException {
+        switch (opcode) {
+            case WAVLTreeServer.INSERT:
+            case WAVLTreeServer.DELETE:
+                return Integer.toString(in.readInt());
+            case WAVLTreeServer.RANGE:
+                int count = in.readInt();
+                int[] keys = new int[count];
+                String[] info = new String[count];
+                for (int j = 0; j < count; j++) {
+                    keys[j] = in.readInt();
+                    info[j] = WAVLTreeServer.readString(in);
+                }
+                return Arrays.toString(keys) + Arrays.toString(info);
+            default:
+                return String.valueOf(WAVLTreeServer.readString(in));
+        }
+    }
+
+    /**
+     * The events the writer of a change feed test published, in sequence order.
+     */
+    private static final class FeedEvents {
+
+        private final WAVLChangeFeed.ChangeType[] types;
+        private final int[] keys;
+        private final String[] infos;
+        private volatile int count; // number of events recorded, the event with sequence s is at index s - 1
+
+        private FeedEvents(int capacity) {
+            this.types = new WAVLChangeFeed.ChangeType[capacity];
+            this.keys = new int[capacity];
+            this.infos = new String[capacity];
+            this.count = 0;
+        }
+
+        private void record(WAVLChangeFeed.ChangeType type, int key, String info) {
+            types[count] = type;
+            keys[count] = key;
+            infos[count] = info;
+            count = count + 1; // only the writer thread updates count
+        }
+    }
+
+    /**
+     * Checks the events a subscription delivers against the recorded ones, and replays them into a replica.
+     */
+    private static final class FeedFollower implements WAVLChangeFeed.Listener {
+
+        private final FeedEvents events;
+        private final AtomicReference<String> failure;
+        private final long publishedBefore; // events published before the subscription was made
+        private final TreeMap<Integer, String> replica;
+        private long lastSequence; // sequence of the last event received, or 0 if none was
+        private int received; // number of events received
+        private long maxLag; // largest lag() seen
+
+        private FeedFollower(FeedEvents events, AtomicReference<String> failure, long publishedBefore) {
+            this.events = events;
+            this.failure = failure;
+            this.publishedBefore = publishedBefore;
+            this.replica = new TreeMap<Integer, String>();
+        }
+
+        @Override
+        public void onChange(long sequence, WAVLChangeFeed.ChangeType type, int key, String info) {
+            if (lastSequence == 0 ? sequence <= publishedBefore : sequence != lastSequence + 1) {
+                failure.compareAndSet(null, "a follower received event " + sequence + " after "
+                        + (lastSequence == 0 ? "subscribing at " + publishedBefore : "event " + lastSequence));
+            } else if (sequence > events.count) {
+                failure.compareAndSet(null, "a follower received event " + sequence + " before it was recorded");
+            } else {
+                int index = (int) sequence - 1;
+                if (type != events.types[index] || key != events.keys[index] || !info.equals(events.infos[index])) {
+                    failure.compareAndSet(null, "a follower received event " + sequence + " as " + type + " " + key
+                            + " " + info + " instead of " + events.types[index] + " " + events.keys[index] + " "
+                            + events.infos[index]);
+                }
+            }
+            if (type == WAVLChangeFeed.ChangeType.INSERT) {
+                replica.put(key, info);
+            } else {
+                replica.remove(key);
+            }
+            lastSequence = sequence;
+            received++;
+        }
+
+        private void checkLag(long lag) {
+            if (lag < 0 || lag > FEED_CAPACITY) {
+                failure.compareAndSet(null, "a follower's lag() returned " + lag + " with capacity " + FEED_CAPACITY);
+            }
+            maxLag = Math.max(maxLag, lag);
+        }
+    }
+
+    /**
+     * A snapshot of the versioned tree, and a copy of the model's first values taken along with it.
+     */
+    private static final class HeldSnapshot {
+
+        private final VersionedWAVLTree.Snapshot snapshot;
+        private final TreeMap<Integer, String> frozen;
+
+        private HeldSnapshot(VersionedWAVLTree.Snapshot snapshot, TreeMap<Integer, String> frozen) {
+            this.snapshot = snapshot;
+            this.frozen = frozen;
+        }
+    }
+
+    /**
+     * A configuration of the tree under test and of the workload applied to it.
+     */
+    private static final class Variant {
+
+        private final WAVLTree.RebalanceMode mode;
+        private boolean multimap = false;
+        private WAVLTree.BalancePolicy policy = WAVLTree.BalancePolicy.WAVL;
+        private boolean phased = false; // whether the workload cycles through phases with different mixes
+        private boolean lazy = false;
+        private boolean hashed = false;
+        private boolean ttl = false; // whether half of the items are inserted with a time to live
+        private boolean allTtl = false; // whether all of them are
+        private int cacheCapacity = 0; // initial number of search cache slots, 0 for none
+        private boolean versioned = false; // whether every update is applied to a VersionedWAVLTree as well
+        private boolean compactTree = false; // whether every update is applied to a CompactWAVLTree as well
+        private boolean longKeys = false; // whether it is applied to a LongWAVLTree and a Long128WAVLTree as well
+
+        private Variant(WAVLTree.RebalanceMode mode) {
+            this.mode = mode;
+        }
+
+        private Variant multimap() {
+            this.multimap = true;
+            return this;
+        }
+
+        private Variant policy(WAVLTree.BalancePolicy policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        private Variant phased() {
+            this.phased = true;
+            return this;
+        }
+
+        private Variant lazy() {
+            this.lazy = true;
+            return this;
+        }
+
+        private Variant hashed() {
+            this.hashed = true;
+            return this;
+        }
+
+        private Variant ttl() {
+            this.ttl = true;
+            return this;
+        }
+
+        private Variant allTtl() {
+            this.ttl = true;
+            this.allTtl = true;
+            return this;
+        }
+
+        private Variant cache(int capacity) {
+            this.cacheCapacity = capacity;
+            return this;
+        }
+
+        private Variant versioned() {
+            this.versioned = true;
+            return this;
+        }
+
+        private Variant compactTree() {
+            this.compactTree = true;
+            return this;
+        }
+
+        private Variant longKeys() {
+            this.longKeys = true;
+            return this;
+        }
+
+        private WAVLTree createTree() {
+            WAVLTree.Options options = new WAVLTree.Options().rebalanceMode(mode);
+            if (multimap) {
+                options.multimap();
+            }
+            if (hashed) {
+                options.hashed();
+            }
+            WAVLTree tree = new WAVLTree(options);
+            tree.setBalancePolicy(policy);
+            tree.setLazyDelete(lazy);
+            tree.setSearchCache(cacheCapacity);
+            return tree;
+        }
+
+        @Override
+        public String toString() {
+            return mode + (multimap ? " multimap" : "") + (policy != WAVLTree.BalancePolicy.WAVL ? " " + policy : "")
+                    + (phased ? " phased" : "") + (lazy ? " lazy" : "") + (hashed ? " hashed" : "") + (allTtl ? " all TTL" : ttl ? " TTL" : "")
+                    + (cacheCapacity > 0 ? " cached" : "") + (versioned ? " versioned" : "")
+                    + (compactTree ? " compact" : "") + (longKeys ? " long keys" : "");
+        }
+    }
+
+    /**
+     * A clock which only moves when told to, so that expiry is reproducible.
+     */
+    private static final class FakeClock extends Clock {
+
+        private long millis;
+
+        private FakeClock(long millis) {
+            this.millis = millis;
+        }
+
+        private void advance(long delta) {
+            millis += delta;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+    }
+}
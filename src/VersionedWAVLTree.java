@@ -0,0 +1,1045 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * VersionedWAVLTree
+ * <p>
+ * An implementation of a WAVL Tree with
+ * distinct integer keys and info, which keeps multiple versions of its contents.
+ * <p>
+ * A single writer at a time updates the tree by copying every node it changes (path copying),
+ * so published versions are never modified. Readers pin an epoch by taking a Snapshot and get a
+ * consistent point-in-time view of the tree without blocking the writer.
+ * Nodes superseded by a write are recycled by later writes once no snapshot pins an epoch which
+ * can still reach them (epoch-based reclamation).
+ * <p>
+ * insert and delete are serialized on the tree, every other method may be called from any thread.
+ */
+
+public class VersionedWAVLTree {
+
+    private static final int DEFAULT_MAX_READERS = 64;
+    private static final int INITIAL_PATH_CAPACITY = 64; // enough for any tree with less than 2^32 nodes
+    private static final long UNPINNED = Long.MAX_VALUE; // value of a reader slot which pins no epoch
+
+    private volatile Version current; // latest published version
+    private final AtomicLongArray readerEpochs; // epoch pinned by each reader slot, or UNPINNED
+
+    // Writer state, only accessed while holding the tree's lock
+    private final WAVLNode externalLeaf; // assigned to be the bottom node of every route in the tree
+    private long writeEpoch; // epoch of the version being built by the current write
+    private WAVLNode[] path; // mutable copies of the nodes on the route from the root to the updated node
+    private int pathLength; // number of nodes currently stored in path
+    private final ArrayDeque<WAVLNode> retiredNodes; // superseded nodes, ordered by their retire epoch
+    private final ArrayDeque<WAVLNode> freeNodes; // reclaimed nodes, ready to be reused
+
+    /**
+     * Default empty constructor to initialize an empty tree.
+     */
+    public VersionedWAVLTree() {
+        this(DEFAULT_MAX_READERS);
+    }
+
+    /**
+     * Constructor to initialize an empty tree.
+     *
+     * @param maxReaders maximal number of snapshots which may be open at the same time,
+     *                   additional readers wait until a snapshot is closed
+     */
+    public VersionedWAVLTree(int maxReaders) {
+        if (maxReaders < 1) {
+            throw new IllegalArgumentException("maxReaders must be positive: " + maxReaders);
+        }
+        this.externalLeaf = new WAVLNode();
+        this.current = new Version(null, 0, 0);
+        this.readerEpochs = new AtomicLongArray(maxReaders);
+        for (int i = 0; i < maxReaders; i++) {
+            readerEpochs.set(i, UNPINNED);
+        }
+        this.path = new WAVLNode[INITIAL_PATH_CAPACITY];
+        this.pathLength = 0;
+        this.retiredNodes = new ArrayDeque<WAVLNode>();
+        this.freeNodes = new ArrayDeque<WAVLNode>();
+    }
+
+    /**
+     * public Snapshot snapshot()
+     * <p>
+     * Pins the latest version of the tree and returns a read-only view of it.
+     * The snapshot must be closed once it is no longer needed, so its nodes can be reclaimed.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    /**
+     * public boolean empty()
+     * <p>
+     * returns true if and only if the tree is empty
+     */
+    public boolean empty() {
+        return current.root == null;
+    }
+
+    /**
+     * public String search(int k)
+     * <p>
+     * returns the info of an item with key k if it exists in the tree
+     * otherwise, returns null
+     */
+    public String search(int k) {
+        Snapshot snapshot = snapshot();
+        try {
+            return snapshot.search(k);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * public int insert(int k, String i)
+     * <p>
+     * inserts an item with key k and info i to the WAVL tree.
+     * the tree must remain valid (keep its invariants).
+     * returns the number of rebalancing operations, or 0 if no rebalancing operations were necessary.
+     * returns -1 if an item with key k already exists in the tree.
+     */
+    public synchronized int insert(int k, String i) {
+        Version version = current;
+        if (version.root != null && findNode(version.root, k) != null) {
+            return -1; // key already exists in the tree
+        }
+
+        writeEpoch = version.epoch + 1;
+        WAVLNode newNode = allocate(k, i);
+        int operationCount = 0;
+        WAVLNode newRoot;
+        if (version.root == null) {
+            newRoot = newNode;
+        } else {
+            WAVLNode parent = copyPath(version.root, k);
+            // Insert newNode into the tree as the left or right child of parent
+            if (k < parent.key) {
+                parent.left = newNode;
+            } else {
+                parent.right = newNode;
+            }
+            operationCount = rebalanceInsert(pathLength - 1);
+            newRoot = path[0];
+        }
+
+        publish(new Version(newRoot, version.size + 1, writeEpoch));
+        return operationCount;
+    }
+
+    /**
+     * public int delete(int k)
+     * <p>
+     * deletes an item with key k from the binary tree, if it is there;
+     * the tree must remain valid (keep its invariants).
+     * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
+     * returns -1 if an item with key k was not found in the tree.
+     */
+    public synchronized int delete(int k) {
+        Version version = current;
+        if (version.root == null || findNode(version.root, k) == null) {
+            return -1;
+        }
+
+        writeEpoch = version.epoch + 1;
+        WAVLNode target = copyPath(version.root, k);
+        WAVLNode removed = target;
+        if (target.left != externalLeaf && target.right != externalLeaf) {
+            // Extend the path down to the predecessor and move its item into target
+            WAVLNode predecessor = mutableChild(target, target.left);
+            pushPath(predecessor);
+            while (predecessor.right != externalLeaf) {
+                predecessor = mutableChild(predecessor, predecessor.right);
+                pushPath(predecessor);
+            }
+            target.key = predecessor.key;
+            target.info = predecessor.info;
+            removed = predecessor;
+        }
+
+        // Replace removed with its only child, or with externalLeaf if it's a leaf
+        WAVLNode replacement = (removed.left != externalLeaf) ? removed.left : removed.right;
+        int parentIndex = pathLength - 2;
+        int operationCount = 0;
+        WAVLNode newRoot;
+        if (parentIndex < 0) {
+            newRoot = (replacement != externalLeaf) ? replacement : null;
+        } else {
+            WAVLNode parent = path[parentIndex];
+            replaceChild(parent, removed, replacement);
+
+            if (parent.isALeaf(externalLeaf) && parent.rank == 1) {
+                // This is a 2-2 leaf
+                parent.rank--;
+                operationCount = 1 + rebalanceDelete(parentIndex - 1);
+            } else {
+                operationCount = rebalanceDelete(parentIndex);
+            }
+            newRoot = path[0];
+        }
+        release(removed); // the copy was never published
+
+        publish(new Version(newRoot, version.size - 1, writeEpoch));
+        return operationCount;
+    }
+
+    /**
+     * public String min()
+     * <p>
+     * Returns the info of the item with the smallest key in the tree,
+     * or null if the tree is empty
+     */
+    public String min() {
+        Snapshot snapshot = snapshot();
+        try {
+            return snapshot.min();
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * public String max()
+     * <p>
+     * Returns the info of the item with the largest key in the tree,
+     * or null if the tree is empty
+     */
+    public String max() {
+        Snapshot snapshot = snapshot();
+        try {
+            return snapshot.max();
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * public int[] keysToArray()
+     * <p>
+     * Returns a sorted array which contains all keys in the tree,
+     * or an empty array if the tree is empty.
+     */
+    public int[] keysToArray() {
+        Snapshot snapshot = snapshot();
+        try {
+            return snapshot.keysToArray();
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * public String[] infoToArray()
+     * <p>
+     * Returns an array which contains all info in the tree,
+     * sorted by their respective keys,
+     * or an empty array if the tree is empty.
+     */
+    public String[] infoToArray() {
+        Snapshot snapshot = snapshot();
+        try {
+            return snapshot.infoToArray();
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * public int size()
+     * <p>
+     * Returns the number of nodes in the tree.
+     * <p>
+     * precondition: none
+     * postcondition: none
+     */
+    public int size() {
+        return current.size;
+    }
+
+
+    // ************************************* Helper functions *************************************************
+
+    /**
+     * Searches for a node with the given key without changing anything.
+     *
+     * @param node root of the subtree to search
+     * @param key  key of the node to look for
+     * @return node with the specified key, or null if key was not found
+     */
+    private WAVLNode findNode(WAVLNode node, int key) {
+        while (node != externalLeaf) {
+            if (key == node.key) {
+                return node;
+            }
+            node = (key < node.key) ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Copies the route from the root towards the given key, recording the copies in path.
+     * <p>
+     * Precondition: root is not null
+     *
+     * @param root root of the latest version
+     * @param key  key of the node to look for
+     * @return copy of the node with the specified key, or of the last node that was reached if key was not found
+     */
+    private WAVLNode copyPath(WAVLNode root, int key) {
+        pathLength = 0;
+        WAVLNode node = mutable(root);
+        while (true) {
+            pushPath(node);
+            if (key == node.key) {
+                return node;
+            }
+            WAVLNode next = (key < node.key) ? node.left : node.right;
+            if (next == externalLeaf) {
+                return node;
+            }
+            node = mutableChild(node, next);
+        }
+    }
+
+    /**
+     * Appends a node to the recorded path, growing the stack if needed.
+     *
+     * @param node node to append
+     */
+    private void pushPath(WAVLNode node) {
+        if (pathLength == path.length) {
+            WAVLNode[] newPath = new WAVLNode[path.length * 2];
+            System.arraycopy(path, 0, newPath, 0, pathLength);
+            path = newPath;
+        }
+        path[pathLength++] = node;
+    }
+
+    /**
+     * Returns the parent of the node at the given index of the recorded path.
+     *
+     * @param index index of a node in path
+     * @return parent of that node, or null if it is the root
+     */
+    private WAVLNode parentOnPath(int index) {
+        return (index > 0) ? path[index - 1] : null;
+    }
+
+    /**
+     * Returns a version of node which the current write may modify, copying it if it is published.
+     * The published node is retired.
+     *
+     * @param node node which is about to be modified
+     * @return node itself if it was created by the current write, otherwise a new copy of it
+     */
+    private WAVLNode mutable(WAVLNode node) {
+        if (node.epoch == writeEpoch) {
+            return node;
+        }
+        WAVLNode copy = allocate(node.key, node.info);
+        copy.left = node.left;
+        copy.right = node.right;
+        copy.rank = node.rank;
+
+        // The node is still reachable from the previous version, but not from the one being written
+        node.epoch = writeEpoch - 1;
+        retiredNodes.addLast(node);
+        return copy;
+    }
+
+    /**
+     * Makes the given child of a mutable parent mutable, and links the parent to the copy.
+     *
+     * @param parent mutable node
+     * @param child  one of parent's children, which is not externalLeaf
+     * @return mutable version of child
+     */
+    private WAVLNode mutableChild(WAVLNode parent, WAVLNode child) {
+        WAVLNode copy = mutable(child);
+        if (copy != child) {
+            replaceChild(parent, child, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Creates a leaf node for the current write, reusing a reclaimed node if one is available.
+     *
+     * @param key  key of the node
+     * @param info info of the node
+     * @return new leaf node
+     */
+    private WAVLNode allocate(int key, String info) {
+        WAVLNode node = freeNodes.pollLast();
+        if (node == null) {
+            node = new WAVLNode();
+        }
+        node.left = externalLeaf;
+        node.right = externalLeaf;
+        node.key = key;
+        node.info = info;
+        node.rank = 0;
+        node.epoch = writeEpoch;
+        return node;
+    }
+
+    /**
+     * Returns a node which was created by the current write and is no longer used to the free list.
+     *
+     * @param node node created by the current write
+     */
+    private void release(WAVLNode node) {
+        node.info = null;
+        freeNodes.addLast(node);
+    }
+
+    /**
+     * Publishes a new version and reclaims the retired nodes which no pinned epoch can reach anymore.
+     *
+     * @param version version which was built by the current write
+     */
+    private void publish(Version version) {
+        current = version;
+
+        long minPinnedEpoch = version.epoch;
+        for (int i = 0; i < readerEpochs.length(); i++) {
+            minPinnedEpoch = Math.min(minPinnedEpoch, readerEpochs.get(i));
+        }
+        // A node retired in epoch e is reachable from versions up to e only
+        while (!retiredNodes.isEmpty() && retiredNodes.peekFirst().epoch < minPinnedEpoch) {
+            WAVLNode node = retiredNodes.pollFirst();
+            node.left = null;
+            node.right = null;
+            node.info = null;
+            freeNodes.addLast(node);
+        }
+    }
+
+    /**
+     * Rebalances the tree after insertion by the WAVL algorithm rules
+     *
+     * @param index index in path of the parent of the newly inserted node
+     * @return number of rebalancing operations
+     * (counting promote/demote/rotate as a single operation and double-rotate as two operations)
+     */
+    private int rebalanceInsert(int index) {
+        int operationCount = 0;
+        int rebalanceCase = checkCaseInsert(path[index]);
+
+        while (rebalanceCase == 1) {
+            path[index].rank++;
+            operationCount++;
+            index--;
+            rebalanceCase = (index >= 0) ? checkCaseInsert(path[index]) : 0;
+        }
+
+        // Only nodes on the copied path are changed by insertion rotations
+        WAVLNode node = (index >= 0) ? path[index] : null;
+        switch (rebalanceCase) {
+            case 2:
+                WAVLNode child = node.getChildWithRankDiff(0);
+                node.rank--;
+                rotate(node, child, parentOnPath(index));
+                operationCount++;
+                break;
+            case 3:
+                // Fix ranks
+                WAVLNode middleNode = node.getChildWithRankDiff(0);
+                WAVLNode bottomNode = middleNode.getChildWithRankDiff(1);
+                node.rank--;
+                middleNode.rank--;
+                bottomNode.rank++;
+
+                // Perform double rotation
+                doubleRotate(node, middleNode, bottomNode, parentOnPath(index));
+
+                operationCount += 2;
+                break;
+        }
+        return operationCount;
+    }
+
+    /**
+     * Checks which case of rebalancing is needed after insertion to fix the sub-tree starting at the given node.
+     *
+     * @param node root of the given sub-tree
+     * @return which case was found
+     */
+    private int checkCaseInsert(WAVLNode node) {
+        WAVLNode zeroDiffChild = node.getChildWithRankDiff(0);
+        if (zeroDiffChild == null) {
+            // No rebalancing is needed
+            return 0;
+        }
+        if (node.getChildWithRankDiff(1) != null) {
+            // Case 1
+            return 1;
+        }
+
+        // Node has a 0-child and a 2-child, check which direction of case 2 or 3 it is
+        WAVLNode outerChild = (node.left == zeroDiffChild) ? zeroDiffChild.left : zeroDiffChild.right;
+        return (zeroDiffChild.rank - outerChild.rank == 1) ? 2 : 3;
+    }
+
+    /**
+     * Rebalances the tree after deletion by the WAVL algorithm rules
+     *
+     * @param index index in path of the node whose child was demoted or removed
+     * @return number of rebalancing operations
+     * (counting promote/demote/rotate as a single operation and double-rotate as two operations)
+     */
+    private int rebalanceDelete(int index) {
+        int operationCount = 0;
+        while (index >= 0) {
+            WAVLNode node = path[index];
+            int rebalanceCase = checkCaseDelete(node);
+            if (rebalanceCase == 0) {
+                return operationCount; // no rebalancing is needed
+            } else if (rebalanceCase == 1) {
+                node.rank--;
+                operationCount++;
+                index--;
+                continue;
+            }
+
+            // The remaining cases change node's other child, which is not on the copied path
+            WAVLNode diffOneChild = mutableChild(node, node.getChildWithRankDiff(1));
+            switch (rebalanceCase) {
+                case 2:
+                    diffOneChild.rank--;
+                    node.rank--;
+                    operationCount += 2;
+                    break;
+                case 3:
+                    rotate(node, diffOneChild, parentOnPath(index));
+
+                    node.rank--;
+                    diffOneChild.rank++;
+                    if (node.isALeaf(externalLeaf) && node.rank == 1) {
+                        node.rank--;
+                        return operationCount + 2;
+                    }
+                    return operationCount + 1;
+                case 4:
+                    WAVLNode diffOneGrandChild = mutableChild(diffOneChild, diffOneChild.getChildWithRankDiff(1));
+
+                    doubleRotate(node, diffOneChild, diffOneGrandChild, parentOnPath(index));
+
+                    node.rank -= 2;
+                    diffOneChild.rank--;
+                    diffOneGrandChild.rank += 2;
+                    return operationCount + 2;
+            }
+            index--;
+        }
+        return operationCount; // demotions reached the root
+    }
+
+    /**
+     * Checks which case of rebalancing is needed after deletion to fix the sub-tree starting at the given node.
+     *
+     * @param node root of the given sub-tree
+     * @return which case was found
+     */
+    private int checkCaseDelete(WAVLNode node) {
+        if (node.getChildWithRankDiff(3) == null) {
+            return 0; // no rebalancing is needed
+        }
+
+        if (node.getChildWithRankDiff(2) != null) {
+            // Case 1
+            return 1;
+        }
+
+        WAVLNode diffOneChild = node.getChildWithRankDiff(1);
+        int leftDiff = diffOneChild.rank - diffOneChild.left.rank; // difference from diffOneChild
+        int rightDiff = diffOneChild.rank - diffOneChild.right.rank; // difference from diffOneChild
+
+        if (leftDiff == 2 && rightDiff == 2) {
+            return 2;
+        }
+
+        if (node.right == diffOneChild) {
+            return (leftDiff == 1 && rightDiff == 2) ? 4 : 3;
+        } else {
+            return (rightDiff == 1 && leftDiff == 2) ? 4 : 3;
+        }
+    }
+
+    /**
+     * Replaces the child pointer of parent which points to oldChild.
+     *
+     * @param parent   mutable parent of oldChild, or null if oldChild is the root
+     * @param oldChild current child
+     * @param newChild node to put in oldChild's place
+     */
+    private void replaceChild(WAVLNode parent, WAVLNode oldChild, WAVLNode newChild) {
+        if (parent == null) {
+            path[0] = newChild; // the new root of the version being written
+        } else if (parent.left == oldChild) {
+            parent.left = newChild;
+        } else {
+            parent.right = newChild;
+        }
+    }
+
+    /**
+     * Rotates subtree around the edge connecting node1 and node2.
+     * Assumes node1 is node2's parent, and both are mutable.
+     *
+     * @param node1       parent node to rotate around
+     * @param node2       child node that would become parent
+     * @param node1Parent parent of node1, or null if node1 is the root
+     */
+    private void rotate(WAVLNode node1, WAVLNode node2, WAVLNode node1Parent) {
+        if (node1.left == node2) {
+            // Right rotation
+            node1.left = node2.right;
+            node2.right = node1;
+        } else {
+            // Left rotation
+            node1.right = node2.left;
+            node2.left = node1;
+        }
+        replaceChild(node1Parent, node1, node2);
+    }
+
+    /**
+     * Performs a double rotation, first on node2 and node3, and then on node1 and node3.
+     *
+     * @param node1       highest node
+     * @param node2       middle node
+     * @param node3       lowest node
+     * @param node1Parent parent of node1, or null if node1 is the root
+     */
+    private void doubleRotate(WAVLNode node1, WAVLNode node2, WAVLNode node3, WAVLNode node1Parent) {
+        rotate(node2, node3, node1);
+        rotate(node1, node3, node1Parent);
+    }
+
+    /**
+     * A read-only view of the tree as it was when the snapshot was taken.
+     * <p>
+     * Taking a snapshot pins its epoch until it is closed, which keeps the writer from reusing its nodes.
+     */
+    public final class Snapshot implements AutoCloseable {
+
+        private final Version version;
+        private int slot; // index in readerEpochs pinned by this snapshot, or -1 once closed
+
+        /**
+         * Pins the latest version in a free reader slot.
+         */
+        private Snapshot() {
+            int index = 0;
+            while (!readerEpochs.compareAndSet(index, UNPINNED, current.epoch)) {
+                index++;
+                if (index == readerEpochs.length()) {
+                    index = 0;
+                    Thread.yield(); // all slots are pinned, wait for a snapshot to be closed
+                }
+            }
+            // The writer may have published and reclaimed before our pin became visible, so pin until stable
+            Version pinned = current;
+            while (true) {
+                readerEpochs.set(index, pinned.epoch);
+                Version latest = current;
+                if (latest == pinned) {
+                    break;
+                }
+                pinned = latest;
+            }
+            this.version = pinned;
+            this.slot = index;
+        }
+
+        /**
+         * Returns the epoch of the version this snapshot views.
+         *
+         * @return number of writes applied to the tree before the snapshot was taken
+         */
+        public long epoch() {
+            return version.epoch;
+        }
+
+        /**
+         * public boolean empty()
+         * <p>
+         * returns true if and only if the tree was empty
+         */
+        public boolean empty() {
+            checkOpen();
+            return version.root == null;
+        }
+
+        /**
+         * public String search(int k)
+         * <p>
+         * returns the info of an item with key k if it existed in the tree
+         * otherwise, returns null
+         */
+        public String search(int k) {
+            checkOpen();
+            if (version.root == null) {
+                return null;
+            }
+            WAVLNode node = findNode(version.root, k);
+            return (node != null) ? node.info : null;
+        }
+
+        /**
+         * public String min()
+         * <p>
+         * Returns the info of the item with the smallest key in the tree,
+         * or null if the tree was empty
+         */
+        public String min() {
+            checkOpen();
+            if (version.root == null) {
+                return null;
+            }
+            WAVLNode node = version.root;
+            while (node.left != externalLeaf) {
+                node = node.left;
+            }
+            return node.info;
+        }
+
+        /**
+         * public String max()
+         * <p>
+         * Returns the info of the item with the largest key in the tree,
+         * or null if the tree was empty
+         */
+        public String max() {
+            checkOpen();
+            if (version.root == null) {
+                return null;
+            }
+            WAVLNode node = version.root;
+            while (node.right != externalLeaf) {
+                node = node.right;
+            }
+            return node.info;
+        }
+
+        /**
+         * public int[] keysToArray()
+         * <p>
+         * Returns a sorted array which contains all keys in the tree,
+         * or an empty array if the tree was empty.
+         */
+        public int[] keysToArray() {
+            checkOpen();
+            int[] arr = new int[version.size];
+            if (version.root != null) {
+                keysToArrayRecursive(arr, 0, version.root);
+            }
+            return arr;
+        }
+
+        /**
+         * public String[] infoToArray()
+         * <p>
+         * Returns an array which contains all info in the tree,
+         * sorted by their respective keys,
+         * or an empty array if the tree was empty.
+         */
+        public String[] infoToArray() {
+            checkOpen();
+            String[] arr = new String[version.size];
+            if (version.root != null) {
+                infoToArrayRecursive(arr, 0, version.root);
+            }
+            return arr;
+        }
+
+        /**
+         * public int size()
+         * <p>
+         * Returns the number of nodes in the tree.
+         */
+        public int size() {
+            checkOpen();
+            return version.size;
+        }
+
+        /**
+         * public void diff(Snapshot other, WAVLTree.DiffVisitor visitor)
+         * <p>
+         * reports every key which is only in this snapshot, only in other, or in both with different info,
+         * in ascending key order. Info values are compared with equals.
+         * subtrees which both snapshots share are skipped without being visited, so diffing two versions
+         * of the same tree takes time proportional to the number of writes between them times log n,
+         * rather than to their size.
+         */
+        public void diff(Snapshot other, WAVLTree.DiffVisitor visitor) {
+            checkOpen();
+            other.checkOpen();
+            SubtreeCursor cursor = cursor();
+            SubtreeCursor otherCursor = other.cursor(); // other may belong to another tree with its own external leaf
+            while (!cursor.isDone() && !otherCursor.isDone()) {
+                WAVLNode node = cursor.top();
+                WAVLNode otherNode = otherCursor.top();
+                if (!cursor.isTopExpanded() || !otherCursor.isTopExpanded()) {
+                    if (node == otherNode && !cursor.isTopExpanded() && !otherCursor.isTopExpanded()) {
+                        // Both snapshots continue with the same published subtree, whose contents are equal
+                        cursor.pop();
+                        otherCursor.pop();
+                    } else if (!cursor.isTopExpanded()
+                            && (otherCursor.isTopExpanded() || node.rank >= otherNode.rank)) {
+                        // Expanding the higher subtree first lets a shared subtree line up with its twin
+                        cursor.expand();
+                    } else {
+                        otherCursor.expand();
+                    }
+                } else if (node.key < otherNode.key) {
+                    visitor.deleted(node.key, node.info);
+                    cursor.pop();
+                } else if (node.key > otherNode.key) {
+                    visitor.inserted(otherNode.key, otherNode.info);
+                    otherCursor.pop();
+                } else {
+                    if ((node.info == null) ? otherNode.info != null : !node.info.equals(otherNode.info)) {
+                        visitor.changed(node.key, node.info, otherNode.info);
+                    }
+                    cursor.pop();
+                    otherCursor.pop();
+                }
+            }
+            while (!cursor.isDone()) {
+                if (!cursor.isTopExpanded()) {
+                    cursor.expand();
+                } else {
+                    visitor.deleted(cursor.top().key, cursor.top().info);
+                    cursor.pop();
+                }
+            }
+            while (!otherCursor.isDone()) {
+                if (!otherCursor.isTopExpanded()) {
+                    otherCursor.expand();
+                } else {
+                    visitor.inserted(otherCursor.top().key, otherCursor.top().info);
+                    otherCursor.pop();
+                }
+            }
+        }
+
+        /**
+         * Unpins the snapshot's epoch. The snapshot may not be used afterwards.
+         */
+        @Override
+        public void close() {
+            if (slot >= 0) {
+                readerEpochs.set(slot, UNPINNED);
+                slot = -1;
+            }
+        }
+
+        /**
+         * Creates a cursor walking this snapshot, bound to the tree which owns its nodes.
+         *
+         * @return cursor positioned before the smallest key
+         */
+        private SubtreeCursor cursor() {
+            return new SubtreeCursor(version.root);
+        }
+
+        /**
+         * Makes sure the snapshot's nodes weren't released to the writer.
+         */
+        private void checkOpen() {
+            if (slot < 0) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+        }
+
+        /**
+         * Recursively inserts tree keys into an array in sorted order.
+         *
+         * @param arr          array to which the keys are inserted
+         * @param keysInserted number of keys already inserted into the array
+         * @param node         root of current sub-tree
+         * @return number of keys that were inserted to the array in current sub-tree
+         */
+        private int keysToArrayRecursive(int[] arr, int keysInserted, WAVLNode node) {
+            int leftSubTreeSize = 0;
+            if (node.left != externalLeaf) {
+                leftSubTreeSize = keysToArrayRecursive(arr, keysInserted, node.left);
+            }
+
+            arr[keysInserted + leftSubTreeSize] = node.key;
+
+            int rightSubTreeSize = 0;
+            if (node.right != externalLeaf) {
+                rightSubTreeSize = keysToArrayRecursive(arr, keysInserted + leftSubTreeSize + 1, node.right);
+            }
+
+            return leftSubTreeSize + 1 + rightSubTreeSize;
+        }
+
+        /**
+         * Recursively inserts tree info into an array in sorted order (by keys).
+         *
+         * @param arr             array to which the info is inserted
+         * @param stringsInserted number of info strings that were already inserted into the array
+         * @param node            root of current sub-tree
+         * @return number of info strings that were inserted to the array in current sub-tree
+         */
+        private int infoToArrayRecursive(String[] arr, int stringsInserted, WAVLNode node) {
+            int leftSubTreeSize = 0;
+            if (node.left != externalLeaf) {
+                leftSubTreeSize = infoToArrayRecursive(arr, stringsInserted, node.left);
+            }
+
+            arr[stringsInserted + leftSubTreeSize] = node.info;
+
+            int rightSubTreeSize = 0;
+            if (node.right != externalLeaf) {
+                rightSubTreeSize = infoToArrayRecursive(arr, stringsInserted + leftSubTreeSize + 1, node.right);
+            }
+
+            return leftSubTreeSize + 1 + rightSubTreeSize;
+        }
+    }
+
+    /**
+     * An in-order walk over a version which can skip whole subtrees.
+     * <p>
+     * The stack holds what is left to visit, the top being next: either a subtree which was not expanded yet,
+     * standing for all of its nodes, or an expanded node, standing for that node alone.
+     */
+    private final class SubtreeCursor {
+
+        private WAVLNode[] nodes;
+        private boolean[] expanded; // whether the matching entry in nodes is an expanded node
+        private int size; // number of entries on the stack
+
+        /**
+         * @param root root of the version to walk, or null if it is empty
+         */
+        private SubtreeCursor(WAVLNode root) {
+            // Every level of the tree leaves at most a right subtree and an expanded node on the stack
+            int capacity = (root != null) ? 2 * root.rank + 3 : 1;
+            this.nodes = new WAVLNode[capacity];
+            this.expanded = new boolean[capacity];
+            this.size = 0;
+            if (root != null) {
+                push(root, false);
+            }
+        }
+
+        private boolean isDone() {
+            return size == 0;
+        }
+
+        private WAVLNode top() {
+            return nodes[size - 1];
+        }
+
+        private boolean isTopExpanded() {
+            return expanded[size - 1];
+        }
+
+        /**
+         * Skips the top entry, which is a whole subtree if it was not expanded.
+         */
+        private void pop() {
+            size--;
+        }
+
+        /**
+         * Replaces the subtree on top of the stack by its left subtree, its root and its right subtree.
+         */
+        private void expand() {
+            WAVLNode node = nodes[--size];
+            if (node.right != externalLeaf) {
+                push(node.right, false);
+            }
+            push(node, true);
+            if (node.left != externalLeaf) {
+                push(node.left, false);
+            }
+        }
+
+        private void push(WAVLNode node, boolean isExpanded) {
+            nodes[size] = node;
+            expanded[size] = isExpanded;
+            size++;
+        }
+    }
+
+    /**
+     * An immutable published version of the tree.
+     */
+    private static final class Version {
+
+        private final WAVLNode root; // null if the version is empty
+        private final int size;
+        private final long epoch; // number of writes applied to create this version
+
+        private Version(WAVLNode root, int size, long epoch) {
+            this.root = root;
+            this.size = size;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * A single tree-node with a key and String info.
+     * <p>
+     * Once a version containing the node is published, the node is never modified
+     * until it is retired and reclaimed.
+     */
+    private static class WAVLNode {
+
+        private WAVLNode left;
+        private WAVLNode right;
+        private int key;
+        private String info;
+        private int rank;
+        private long epoch; // epoch of the write which created the node, or the last epoch reaching it once retired
+
+        /**
+         * Constructor to create an unlinked node, or the external leaf
+         */
+        private WAVLNode() {
+            this.right = null;
+            this.left = null;
+            this.key = -1;
+            this.info = null;
+            this.rank = -1;
+            this.epoch = -1;
+        }
+
+        /**
+         * Returns the child node with the specified rank difference, if one exists.
+         *
+         * @param rankDiff rank difference to look for in child nodes
+         * @return child node with a rank of this.rank-rankDiff
+         */
+        private WAVLNode getChildWithRankDiff(int rankDiff) {
+            if (left.rank == this.rank - rankDiff) {
+                return left;
+            } else if (right.rank == this.rank - rankDiff) {
+                return right;
+            }
+            return null; // the requested child was not found
+        }
+
+        /**
+         * Checks whether this node has no children that are not an external leaf.
+         *
+         * @param externalLeaf external leaf of the tree
+         * @return true iff this node is a leaf.
+         */
+        private boolean isALeaf(WAVLNode externalLeaf) {
+            return right == externalLeaf && left == externalLeaf;
+        }
+    }
+}
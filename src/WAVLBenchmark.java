@@ -0,0 +1,221 @@
+import java.util.Random;
+
+/**
+ * Micro benchmark comparing the rebalancing modes and node layouts of the WAVL trees.
+ * <p>
+ * Usage: java WAVLBenchmark [number of keys] [rounds]
+ */
+public class WAVLBenchmark {
+    private static final long SEED = 42;
+    private static final String INFO = "info";
+    private static final long KEY_SPREAD = 0x9E3779B97F4A7C15L; // odd, so spreading int keys over a long keeps them distinct
+
+    private int[] keys;
+    private int rounds;
+
+    public static void main(String args[]) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        WAVLBenchmark benchmark = new WAVLBenchmark(n, rounds);
+        benchmark.run();
+    }
+
+    private WAVLBenchmark(int n, int rounds) {
+        this.rounds = rounds;
+        this.keys = new int[n];
+        Random random = new Random(SEED);
+        for (int i = 0; i < n; i++) {
+            keys[i] = random.nextInt();
+        }
+    }
+
+    private void run() {
+        System.out.println("keys: " + keys.length + ", rounds: " + rounds);
+        for (final WAVLTree.RebalanceMode mode : WAVLTree.RebalanceMode.values()) {
+            benchmark("WAVLTree " + mode, new TreeFactory() {
+                public BenchmarkTree create() {
+                    return wrap(new WAVLTree(mode));
+                }
+            });
+        }
+        benchmark("CompactWAVLTree", new TreeFactory() {
+            public BenchmarkTree create() {
+                return wrap(new CompactWAVLTree());
+            }
+        });
+        benchmark("LongWAVLTree", new TreeFactory() {
+            public BenchmarkTree create() {
+                return wrap(new LongWAVLTree());
+            }
+        });
+        benchmark("Long128WAVLTree", new TreeFactory() {
+            public BenchmarkTree create() {
+                return wrap(new Long128WAVLTree());
+            }
+        });
+    }
+
+    private void benchmark(String name, TreeFactory factory) {
+        long insertNanos = 0;
+        long searchNanos = 0;
+        long deleteNanos = 0;
+        long rebalanceOperations = 0;
+        long retainedBytes = 0;
+        // First round is a warm-up and is not counted
+        for (int round = 0; round <= rounds; round++) {
+            long emptyHeap = usedHeap();
+            BenchmarkTree tree = factory.create();
+            long operations = 0;
+
+            long start = System.nanoTime();
+            for (int key : keys) {
+                operations += Math.max(0, tree.insert(key, INFO));
+            }
+            long afterInsert = System.nanoTime();
+            if (round == rounds) {
+                retainedBytes = usedHeap() - emptyHeap;
+            }
+
+            long beforeSearch = System.nanoTime();
+            int found = 0;
+            for (int key : keys) {
+                if (tree.search(key) != null) {
+                    found++;
+                }
+            }
+            long afterSearch = System.nanoTime();
+            for (int key : keys) {
+                operations += Math.max(0, tree.delete(key));
+            }
+            long afterDelete = System.nanoTime();
+
+            if (found != keys.length || !tree.empty()) {
+                throw new IllegalStateException("Benchmark tree lost keys");
+            }
+            if (round > 0) {
+                insertNanos += afterInsert - start;
+                searchNanos += afterSearch - beforeSearch;
+                deleteNanos += afterDelete - afterSearch;
+                rebalanceOperations += operations;
+            }
+        }
+
+        System.out.println(name + ":");
+        printResult("insert", insertNanos);
+        printResult("search", searchNanos);
+        printResult("delete", deleteNanos);
+        System.out.println("  rebalance ops/round: " + rebalanceOperations / rounds);
+        System.out.println(String.format("  retained heap: %.1f bytes/key", (double) retainedBytes / keys.length));
+    }
+
+    private void printResult(String operation, long totalNanos) {
+        double nanosPerOperation = (double) totalNanos / rounds / keys.length;
+        System.out.println(String.format("  %-7s %8.1f ns/op", operation, nanosPerOperation));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static BenchmarkTree wrap(final WAVLTree tree) {
+        return new BenchmarkTree() {
+            public int insert(int k, String i) {
+                return tree.insert(k, i);
+            }
+
+            public String search(int k) {
+                return tree.search(k);
+            }
+
+            public int delete(int k) {
+                return tree.delete(k);
+            }
+
+            public boolean empty() {
+                return tree.empty();
+            }
+        };
+    }
+
+    private static BenchmarkTree wrap(final CompactWAVLTree tree) {
+        return new BenchmarkTree() {
+            public int insert(int k, String i) {
+                return tree.insert(k, i);
+            }
+
+            public String search(int k) {
+                return tree.search(k);
+            }
+
+            public int delete(int k) {
+                return tree.delete(k);
+            }
+
+            public boolean empty() {
+                return tree.empty();
+            }
+        };
+    }
+
+    private static BenchmarkTree wrap(final LongWAVLTree tree) {
+        return new BenchmarkTree() {
+            public int insert(int k, String i) {
+                return tree.insert(k * KEY_SPREAD, i);
+            }
+
+            public String search(int k) {
+                return tree.search(k * KEY_SPREAD);
+            }
+
+            public int delete(int k) {
+                return tree.delete(k * KEY_SPREAD);
+            }
+
+            public boolean empty() {
+                return tree.empty();
+            }
+        };
+    }
+
+    private static BenchmarkTree wrap(final Long128WAVLTree tree) {
+        // The high half is shared by all keys so that comparisons also look at the low half
+        return new BenchmarkTree() {
+            public int insert(int k, String i) {
+                return tree.insert(KEY_SPREAD, k * KEY_SPREAD, i);
+            }
+
+            public String search(int k) {
+                return tree.search(KEY_SPREAD, k * KEY_SPREAD);
+            }
+
+            public int delete(int k) {
+                return tree.delete(KEY_SPREAD, k * KEY_SPREAD);
+            }
+
+            public boolean empty() {
+                return tree.empty();
+            }
+        };
+    }
+
+    /**
+     * The operations measured by the benchmark, implemented by every tree variant.
+     */
+    private interface BenchmarkTree {
+        int insert(int k, String i);
+
+        String search(int k);
+
+        int delete(int k);
+
+        boolean empty();
+    }
+
+    private interface TreeFactory {
+        BenchmarkTree create();
+    }
+}
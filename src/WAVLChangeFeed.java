@@ -0,0 +1,241 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * WAVLChangeFeed
+ * <p>
+ * An ordered stream of the insertions and deletions applied to a WAVLTree, which followers such as
+ * replicas and caches consume incrementally.
+ * <p>
+ * Events are kept in a lock-free ring buffer with a single producer, the thread updating the tree,
+ * and any number of subscriptions, each polling events in batches from its own position.
+ * When the slowest subscription is a full buffer behind, the producer waits for it (backpressure),
+ * so no subscription ever misses an event.
+ */
+
+public class WAVLChangeFeed {
+
+    /**
+     * Kind of change applied to the tree.
+     */
+    public enum ChangeType {
+        INSERT,
+        DELETE
+    }
+
+    /**
+     * Receives events polled by a subscription.
+     */
+    public interface Listener {
+        /**
+         * Called once for every event, in sequence order.
+         *
+         * @param sequence sequence number of the event, starting at 1 and increasing by 1 with every event
+         * @param type     whether info was inserted or deleted
+         * @param key      key of the item
+         * @param info     info which was inserted or deleted
+         */
+        void onChange(long sequence, ChangeType type, int key, String info);
+    }
+
+    private static final long MAX_WAIT_NANOS = 1000000; // longest backpressure park, so the producer notices new capacity
+    private static final long PENDING = -1; // consumed count of a subscription which the producer has not started yet
+
+    private final int mask; // capacity - 1, capacity being a power of 2
+    private final ChangeType[] types;
+    private final int[] keys;
+    private final String[] infos;
+    private final AtomicLong published; // number of events published so far
+
+    // Producer state, only accessed by the thread updating the tree
+    private long nextSequence; // number of events published, equal to published
+    private long cachedMinConsumed; // lower bound of the events consumed by every subscription
+
+    private volatile Subscription[] subscriptions;
+    private volatile boolean subscriptionsChanged; // set by subscribe, so the producer starts the new subscriptions
+
+    /**
+     * Constructor to create an empty feed.
+     *
+     * @param capacity maximal number of events a subscription may fall behind before the producer waits,
+     *                 rounded up to a power of 2
+     */
+    public WAVLChangeFeed(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.types = new ChangeType[size];
+        this.keys = new int[size];
+        this.infos = new String[size];
+        this.published = new AtomicLong(0);
+        this.nextSequence = 0;
+        this.cachedMinConsumed = 0;
+        this.subscriptions = new Subscription[0];
+        this.subscriptionsChanged = false;
+    }
+
+    /**
+     * Subscribes to the events published from now on.
+     * <p>
+     * The subscription starts at the first event the producer publishes after noticing it. Had it started at
+     * the events published so far, the producer could overwrite them while still relying on a minimum
+     * consumed count computed without the new subscription.
+     *
+     * @return subscription which must be closed once it is no longer polled, or it would block the producer
+     */
+    public synchronized Subscription subscribe() {
+        Subscription subscription = new Subscription(PENDING);
+        Subscription[] newSubscriptions = new Subscription[subscriptions.length + 1];
+        System.arraycopy(subscriptions, 0, newSubscriptions, 0, subscriptions.length);
+        newSubscriptions[subscriptions.length] = subscription;
+        subscriptions = newSubscriptions;
+        subscriptionsChanged = true;
+        return subscription;
+    }
+
+    /**
+     * Returns the number of events published so far, which is also the sequence number of the last event.
+     *
+     * @return number of published events
+     */
+    public long publishedCount() {
+        return published.get();
+    }
+
+    /**
+     * Appends an event to the feed, waiting while the slowest subscription is a full buffer behind.
+     * Called only by the thread updating the tree.
+     *
+     * @param type whether info was inserted or deleted
+     * @param key  key of the item
+     * @param info info which was inserted or deleted
+     */
+    void publish(ChangeType type, int key, String info) {
+        long sequence = nextSequence;
+        if (subscriptionsChanged) {
+            subscriptionsChanged = false; // cleared before reading subscriptions, so a later subscribe sets it again
+            for (Subscription subscription : subscriptions) {
+                subscription.consumed.compareAndSet(PENDING, sequence); // no earlier than cachedMinConsumed
+            }
+        }
+        long wrapPoint = sequence - (mask + 1);
+        if (cachedMinConsumed <= wrapPoint) {
+            cachedMinConsumed = waitForSubscriptions(wrapPoint);
+        }
+
+        int index = (int) sequence & mask;
+        types[index] = type;
+        keys[index] = key;
+        infos[index] = info;
+        nextSequence = sequence + 1;
+        published.lazySet(nextSequence); // makes the slot visible to subscriptions which read published
+    }
+
+    /**
+     * Waits until every subscription has consumed the event at the given position.
+     *
+     * @param wrapPoint position of the event which is about to be overwritten
+     * @return number of events consumed by the slowest subscription
+     */
+    private long waitForSubscriptions(long wrapPoint) {
+        int idleSpins = 0;
+        while (true) {
+            long minConsumed = nextSequence;
+            for (Subscription subscription : subscriptions) {
+                long consumed = subscription.consumed.get();
+                if (consumed != PENDING) { // a pending subscription starts after the events published so far
+                    minConsumed = Math.min(minConsumed, consumed);
+                }
+            }
+            if (minConsumed > wrapPoint) {
+                return minConsumed;
+            }
+
+            if (idleSpins < 100) {
+                idleSpins++;
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(MAX_WAIT_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Removes a subscription, so the producer no longer waits for it.
+     *
+     * @param subscription subscription to remove
+     */
+    private synchronized void unsubscribe(Subscription subscription) {
+        int index = -1;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i] == subscription) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        Subscription[] newSubscriptions = new Subscription[subscriptions.length - 1];
+        System.arraycopy(subscriptions, 0, newSubscriptions, 0, index);
+        System.arraycopy(subscriptions, index + 1, newSubscriptions, index, newSubscriptions.length - index);
+        subscriptions = newSubscriptions;
+    }
+
+    /**
+     * A follower's position in the feed. Each subscription must be polled by a single thread at a time.
+     */
+    public final class Subscription implements AutoCloseable {
+
+        private final AtomicLong consumed; // number of events this subscription has consumed, or PENDING
+
+        private Subscription(long start) {
+            this.consumed = new AtomicLong(start);
+        }
+
+        /**
+         * Delivers the events published since the last poll to the listener, in order.
+         * A follower which got no events should back off briefly rather than poll again at once,
+         * since spinning may take the CPU from the producer.
+         *
+         * @param listener receives the events
+         * @param maxBatch maximal number of events to deliver
+         * @return number of events delivered, 0 if no new events were published
+         */
+        public int poll(Listener listener, int maxBatch) {
+            long start = consumed.get();
+            if (start == PENDING) {
+                return 0; // no event was published since the subscription was made
+            }
+            long end = Math.min(published.get(), start + maxBatch);
+            for (long sequence = start; sequence < end; sequence++) {
+                int index = (int) sequence & mask;
+                listener.onChange(sequence + 1, types[index], keys[index], infos[index]);
+            }
+            consumed.lazySet(end); // releases the slots to the producer once they were read
+            return (int) (end - start);
+        }
+
+        /**
+         * Returns the number of published events this subscription has not polled yet.
+         *
+         * @return number of pending events
+         */
+        public long lag() {
+            long start = consumed.get();
+            return (start == PENDING) ? 0 : published.get() - start;
+        }
+
+        /**
+         * Stops following the feed.
+         */
+        @Override
+        public void close() {
+            unsubscribe(this);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import java.util.Arrays;
+
+/**
+ * WAVLExpiryQueue
+ * <p>
+ * Deadline index of a WAVLTree's entries with a time to live. It keeps the deadline of every such entry in an
+ * open-addressing map from key to deadline, and a binary min-heap of (deadline, key) pairs in parallel arrays
+ * to find the earliest one, so an entry costs no object and the tree's nodes keep no deadline.
+ * <p>
+ * The heap is never updated when a deadline is removed or replaced, so it may hold stale pairs, whose deadline
+ * no longer matches the map. They are skipped when they reach the top of the heap, and dropped in bulk once
+ * they outnumber the live ones.
+ */
+
+class WAVLExpiryQueue {
+
+    static final long NO_DEADLINE = Long.MAX_VALUE; // deadline of a key without a time to live
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Heap of (deadline, key) pairs, possibly stale
+    private long[] deadlines;
+    private int[] keys;
+    private int pairCount; // number of pairs in the heap
+
+    // Open-addressing map with linear probing, a slot is empty iff its deadline is NO_DEADLINE
+    private int[] mapKeys;
+    private long[] mapDeadlines;
+    private int size; // number of keys in the map
+
+    /**
+     * Constructor to create an empty queue.
+     */
+    WAVLExpiryQueue() {
+        this.deadlines = new long[INITIAL_CAPACITY];
+        this.keys = new int[INITIAL_CAPACITY];
+        this.pairCount = 0;
+        this.mapKeys = new int[INITIAL_CAPACITY];
+        this.mapDeadlines = new long[INITIAL_CAPACITY];
+        Arrays.fill(mapDeadlines, NO_DEADLINE);
+        this.size = 0;
+    }
+
+    /**
+     * Returns the number of keys with a deadline.
+     *
+     * @return number of keys in the map
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether no key has a deadline.
+     *
+     * @return true iff the queue is empty
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the deadline of a key in O(1) expected time.
+     *
+     * @param key key of the entry
+     * @return time at which the entry expires, or NO_DEADLINE if it has no time to live
+     */
+    long deadline(int key) {
+        if (size == 0) {
+            return NO_DEADLINE;
+        }
+        int mask = mapKeys.length - 1;
+        for (int slot = slot(key); mapDeadlines[slot] != NO_DEADLINE; slot = (slot + 1) & mask) {
+            if (mapKeys[slot] == key) {
+                return mapDeadlines[slot];
+            }
+        }
+        return NO_DEADLINE;
+    }
+
+    /**
+     * Sets or replaces the deadline of a key, in O(log n) amortized time.
+     * A replaced deadline's pair becomes stale.
+     *
+     * @param key      key of the entry
+     * @param deadline time at which the entry expires, smaller than NO_DEADLINE
+     */
+    void setDeadline(int key, long deadline) {
+        int mask = mapKeys.length - 1;
+        int slot = slot(key);
+        while (mapDeadlines[slot] != NO_DEADLINE && mapKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (mapDeadlines[slot] == deadline) {
+            return; // the key's pair is already in the heap
+        }
+        if (mapDeadlines[slot] == NO_DEADLINE) {
+            size++;
+        }
+        mapKeys[slot] = key;
+        mapDeadlines[slot] = deadline;
+        if (2 * size > mapKeys.length) {
+            resizeMap(mapKeys.length * 2);
+        }
+
+        if (pairCount > 2 * size + 64) {
+            dropStalePairs();
+        }
+        if (pairCount == deadlines.length) {
+            deadlines = Arrays.copyOf(deadlines, pairCount * 2);
+            keys = Arrays.copyOf(keys, pairCount * 2);
+        }
+        siftUp(pairCount++, key, deadline);
+    }
+
+    /**
+     * Removes the deadline of a key, if it has one, in O(1) expected time. The key's pair becomes stale.
+     *
+     * @param key key of the entry
+     */
+    void removeDeadline(int key) {
+        if (size == 0) {
+            return;
+        }
+        int mask = mapKeys.length - 1;
+        int slot = slot(key);
+        while (mapDeadlines[slot] != NO_DEADLINE && mapKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (mapDeadlines[slot] == NO_DEADLINE) {
+            return;
+        }
+        size--;
+        // Shift back the following entries of the probe sequence which may no longer reach their slot
+        int hole = slot;
+        for (slot = (slot + 1) & mask; mapDeadlines[slot] != NO_DEADLINE; slot = (slot + 1) & mask) {
+            int home = slot(mapKeys[slot]);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                mapKeys[hole] = mapKeys[slot];
+                mapDeadlines[hole] = mapDeadlines[slot];
+                hole = slot;
+            }
+        }
+        mapDeadlines[hole] = NO_DEADLINE;
+    }
+
+    /**
+     * Returns whether a key's deadline is not later than a given time, discarding the stale pairs
+     * at the top of the heap.
+     *
+     * @param now current time
+     * @return true iff pollDue() may be called
+     */
+    boolean hasDue(long now) {
+        while (pairCount > 0 && deadline(keys[0]) != deadlines[0]) {
+            removeFirst();
+        }
+        return pairCount > 0 && deadlines[0] <= now;
+    }
+
+    /**
+     * Removes the pair with the earliest deadline in O(log n) time. The key keeps its deadline
+     * until removeDeadline() is called.
+     * <p>
+     * Precondition: hasDue() returned true since the last update
+     *
+     * @return key of the entry which expired
+     */
+    int pollDue() {
+        int key = keys[0];
+        removeFirst();
+        return key;
+    }
+
+    /**
+     * Removes the pair at the top of the heap.
+     */
+    private void removeFirst() {
+        pairCount--;
+        if (pairCount > 0) {
+            siftDown(0, keys[pairCount], deadlines[pairCount]);
+        }
+    }
+
+    /**
+     * Removes every stale pair, then restores the heap order in O(n) time.
+     * Called once the pairs outnumber twice the keys with a deadline, so the cost is amortized over the
+     * updates which made them stale.
+     */
+    private void dropStalePairs() {
+        int kept = 0;
+        for (int j = 0; j < pairCount; j++) {
+            if (deadline(keys[j]) == deadlines[j]) {
+                keys[kept] = keys[j];
+                deadlines[kept] = deadlines[j];
+                kept++;
+            }
+        }
+        pairCount = kept;
+        for (int j = (pairCount >>> 1) - 1; j >= 0; j--) {
+            siftDown(j, keys[j], deadlines[j]);
+        }
+    }
+
+    /**
+     * Moves the map's entries to new arrays.
+     *
+     * @param capacity number of slots of the new arrays, a power of 2
+     */
+    private void resizeMap(int capacity) {
+        int[] oldKeys = mapKeys;
+        long[] oldDeadlines = mapDeadlines;
+        mapKeys = new int[capacity];
+        mapDeadlines = new long[capacity];
+        Arrays.fill(mapDeadlines, NO_DEADLINE);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldDeadlines[j] != NO_DEADLINE) {
+                int slot = slot(oldKeys[j]);
+                while (mapDeadlines[slot] != NO_DEADLINE) {
+                    slot = (slot + 1) & mask;
+                }
+                mapKeys[slot] = oldKeys[j];
+                mapDeadlines[slot] = oldDeadlines[j];
+            }
+        }
+    }
+
+    /**
+     * Returns the map slot at which the probe sequence of a key starts.
+     *
+     * @param key key of the entry
+     * @return slot index
+     */
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (mapKeys.length - 1);
+    }
+
+    /**
+     * Moves a pair up from an empty slot until its parent's deadline is not later.
+     *
+     * @param index    empty slot to start from
+     * @param key      key of the pair
+     * @param deadline deadline of the pair
+     */
+    private void siftUp(int index, int key, long deadline) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (deadlines[parent] <= deadline) {
+                break;
+            }
+            keys[index] = keys[parent];
+            deadlines[index] = deadlines[parent];
+            index = parent;
+        }
+        keys[index] = key;
+        deadlines[index] = deadline;
+    }
+
+    /**
+     * Moves a pair down from a slot until neither child has an earlier deadline.
+     *
+     * @param index    slot to start from, whose current pair is overwritten
+     * @param key      key of the pair
+     * @param deadline deadline of the pair
+     */
+    private void siftDown(int index, int key, long deadline) {
+        int half = pairCount >>> 1; // slots from half on have no children
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < pairCount && deadlines[child + 1] < deadlines[child]) {
+                child++;
+            }
+            if (deadline <= deadlines[child]) {
+                break;
+            }
+            keys[index] = keys[child];
+            deadlines[index] = deadlines[child];
+            index = child;
+        }
+        keys[index] = key;
+        deadlines[index] = deadline;
+    }
+}
@@ -1,27 +1,238 @@
+import java.time.Clock;
+
 /**
  * WAVLTree
  * <p>
  * An implementation of a WAVL Tree with
  * distinct integer keys and info
+ * <p>
+ * A tree created as a multimap keeps several info values per key in the key's node,
+ * so duplicate keys don't add nodes to the tree.
+ * <p>
+ * A tree created with hashing keeps in every node a hash of the items in its subtree, so the hash of
+ * the whole tree, or of any key range, is available without walking the items.
+ * <p>
+ * With lazy deletion, delete only marks the item's node as a tombstone, and tombstones are
+ * removed later by compaction, so deletions don't rebalance on the caller's thread.
+ * <p>
+ * Items inserted with a time to live expire at their deadline: search never returns them,
+ * and updates delete them in small batches.
+ * <p>
+ * An optional search cache maps recently found keys straight to their nodes, so repeated searches
+ * for hot keys skip the descent from the root.
  */
 
 public class WAVLTree {
 
+    /**
+     * Strategy used to restore the WAVL rank rules after insertion and deletion.
+     */
+    public enum RebalanceMode {
+        /**
+         * Search down to the affected node, then walk back up through parent pointers fixing ranks.
+         */
+        BOTTOM_UP,
+        /**
+         * Decide during the descent where rebalancing will stop, so ranks are fixed
+         * without walking back up through parent pointers.
+         */
+        TOP_DOWN
+    }
+
+    /**
+     * Rank rule the tree keeps, trading rebalancing work for height.
+     */
+    public enum BalancePolicy {
+        /**
+         * Rank differences are 1 or 2 and there are no 2-2 leaves. O(1) amortized rotations per update.
+         */
+        WAVL,
+        /**
+         * WAVL without any 2-2 nodes, so ranks are heights and the height is at most 1.44 log n.
+         * Suits read-mostly workloads, although a deletion may rotate O(log n) times.
+         */
+        AVL,
+        /**
+         * Deletions don't rebalance, they only keep rank differences positive, so the height is O(log m)
+         * for m insertions rather than O(log n). Deletions never rebuild the tree: once they outnumber its nodes,
+         * rebalanceDue() turns true and rebalance() restores the height in O(n) time, best called while idle.
+         * Suits delete-heavy workloads.
+         */
+        RELAXED,
+        /**
+         * Picks one of the policies above from the mix of recent operations and the rebalancing work
+         * reported by recent deletions, and switches as the workload changes.
+         */
+        ADAPTIVE
+    }
+
+    /**
+     * Settings fixed when a tree is created, each set by a chained call:
+     * <p>
+     * new WAVLTree(new WAVLTree.Options().rebalanceMode(RebalanceMode.TOP_DOWN).multimap().hashed())
+     */
+    public static class Options {
+
+        private RebalanceMode rebalanceMode = RebalanceMode.BOTTOM_UP;
+        private boolean multimap = false;
+        private boolean hashed = false;
+
+        /**
+         * Sets the strategy used to fix ranks after insertion and deletion, BOTTOM_UP by default.
+         *
+         * @param rebalanceMode rebalancing strategy
+         * @return these options
+         */
+        public Options rebalanceMode(RebalanceMode rebalanceMode) {
+            this.rebalanceMode = rebalanceMode;
+            return this;
+        }
+
+        /**
+         * Makes the tree a multimap, which appends info when inserting an existing key rather than failing.
+         *
+         * @return these options
+         */
+        public Options multimap() {
+            this.multimap = true;
+            return this;
+        }
+
+        /**
+         * Makes the tree keep subtree hashes, which rootHash() and rangeHash() require.
+         *
+         * @return these options
+         */
+        public Options hashed() {
+            this.hashed = true;
+            return this;
+        }
+    }
+
+    /**
+     * Receives the differences found by diff, in ascending key order.
+     */
+    public interface DiffVisitor {
+        /**
+         * Called for a key which is only in the other tree.
+         *
+         * @param k    key of the item
+         * @param info info of the item in the other tree
+         */
+        void inserted(int k, String info);
+
+        /**
+         * Called for a key which is only in this tree.
+         *
+         * @param k    key of the item
+         * @param info info of the item in this tree
+         */
+        void deleted(int k, String info);
+
+        /**
+         * Called for a key which is in both trees with different info.
+         *
+         * @param k         key of the item
+         * @param info      info of the item in this tree
+         * @param otherInfo info of the item in the other tree
+         */
+        void changed(int k, String info, String otherInfo);
+    }
+
+    /**
+     * Decides which info to keep when merge finds a key with different info in both trees.
+     */
+    public interface ConflictResolver {
+        /**
+         * @param k         key of the item
+         * @param info      info of the item in this tree
+         * @param otherInfo info of the item in the other tree
+         * @return info to keep in this tree
+         */
+        String resolve(int k, String info, String otherInfo);
+    }
+
+    private static final int DIFF_WALK_NODES = 16; // most nodes per tree in a key range which diff walks unsplit
+    private static final int ADAPTIVE_WINDOW = 4096; // minimal number of operations between policy evaluations
+    private static final Object TOMBSTONE = new Object(); // info of a node whose items were lazily deleted
+    private static final int EXPIRY_BATCH = 32; // most expired items an update deletes before doing its own work
+
     private WAVLNode root;
     private final WAVLNode externalLeaf; // assigned to be the bottom node of every route in the tree
     private WAVLNode min; // node with minimum key in the tree
     private WAVLNode max; // node with maximum key in the tree
-    private int size; // number of nodes in the tree
+    private int size; // number of nodes in the tree, not counting tombstones
+    private int valueCount; // number of info values in the tree, more than size only in a multimap
+    private final RebalanceMode rebalanceMode;
+    private final boolean multimap; // whether inserting an existing key adds a value instead of failing
+    private final boolean hashed; // whether nodes keep a hash of the items in their subtree
+    private WAVLChangeFeed changeFeed; // receives an event for every inserted and deleted info value, or null
+    private BalancePolicy balancePolicy; // policy chosen by the user
+    private BalancePolicy activePolicy; // rank rule currently kept, never ADAPTIVE
+    private int deletesSinceRebuild; // deletions without rebalancing since the tree was last rebuilt
+    private boolean lazyDelete; // whether delete leaves a tombstone rather than removing the node
+    private int tombstoneCount; // nodes whose items were deleted but which are still in the tree
+    private long compactionKey; // smallest key the next compact() call visits
+    private Clock clock; // source of the current time for deadlines
+    private WAVLExpiryQueue expiryQueue; // deadlines of the items with a time to live, by key
+
+    // Search cache, a direct-mapped open-addressing table from key to node, or null arrays if disabled
+    private int[] cacheKeys;
+    private WAVLNode[] cacheNodes; // null marks an empty slot
+    private long cacheHits;
+    private long cacheMisses;
+
+    // Operations seen since the adaptive policy was last evaluated
+    private int windowSearches;
+    private int windowInserts;
+    private int windowDeletes;
+    private long windowDeleteRebalanceOps; // rebalancing operations reported by windowDeletes
 
     /**
      * Default empty constructor to initialize an empty tree.
      */
     public WAVLTree() {
+        this(RebalanceMode.BOTTOM_UP);
+    }
+
+    /**
+     * Constructor to initialize an empty tree which rebalances using the given mode.
+     *
+     * @param rebalanceMode strategy used to fix ranks after insertion and deletion
+     */
+    public WAVLTree(RebalanceMode rebalanceMode) {
+        this(new Options().rebalanceMode(rebalanceMode));
+    }
+
+    /**
+     * Constructor to initialize an empty tree with the given settings, such as multimap mode or hashing.
+     *
+     * @param options settings of the tree, which are copied
+     */
+    public WAVLTree(Options options) {
+        this.rebalanceMode = options.rebalanceMode;
+        this.multimap = options.multimap;
+        this.hashed = options.hashed;
         this.root = null;
-        this.externalLeaf = new WAVLNode();
+        this.externalLeaf = hashed ? new HashedNode() : new WAVLNode();
         this.min = null;
         this.max = null;
         this.size = 0;
+        this.valueCount = 0;
+        this.changeFeed = null;
+        this.balancePolicy = BalancePolicy.WAVL;
+        this.activePolicy = BalancePolicy.WAVL;
+        this.deletesSinceRebuild = 0;
+        this.lazyDelete = false;
+        this.tombstoneCount = 0;
+        this.compactionKey = Integer.MIN_VALUE;
+        this.clock = Clock.systemUTC();
+        this.expiryQueue = new WAVLExpiryQueue();
+        this.cacheKeys = null;
+        this.cacheNodes = null;
+        this.cacheHits = 0;
+        this.cacheMisses = 0;
+        resetPolicyWindow();
     }
 
     /**
@@ -40,13 +251,17 @@ public class WAVLTree {
      * otherwise, returns null
      */
     public String search(int k) {
+        if (balancePolicy == BalancePolicy.ADAPTIVE) {
+            windowSearches++;
+            adaptBalancePolicy();
+        }
         if (empty()) {
             return null;
         }
 
-        WAVLNode result = searchRecursive(root, k);
-        if (result.key == k) {
-            return result.info;
+        WAVLNode result = (cacheNodes != null) ? searchCached(k) : searchRecursive(root, k);
+        if (result.key == k && !result.isTombstone() && !isExpired(result)) {
+            return result.info();
         } else {
             return null;
         }
@@ -59,23 +274,64 @@ public class WAVLTree {
      * the tree must remain valid (keep its invariants).
      * returns the number of rebalancing operations, or 0 if no rebalancing operations were necessary.
      * returns -1 if an item with key k already exists in the tree.
+     * in a multimap, i is appended to the info of an existing key k, and 0 is returned.
      */
     public int insert(int k, String i) {
+        expireDue(EXPIRY_BATCH);
+        int result = (rebalanceMode == RebalanceMode.TOP_DOWN) ? insertTopDown(k, i) : insertBottomUp(k, i);
+        if (balancePolicy == BalancePolicy.ADAPTIVE && result >= 0) {
+            windowInserts++;
+            adaptBalancePolicy();
+        }
+        return result;
+    }
+
+    /**
+     * public int insert(int k, String i, long ttl)
+     * <p>
+     * inserts an item with key k and info i which expires ttl milliseconds from now, by the tree's clock.
+     * returns the same as insert(k, i); the deadline is only set if the item was inserted.
+     * in a multimap, inserting into an existing key k moves the deadline of all of its values.
+     * expired items are never returned by search, searchAll, count, min, max, the range queries or diff.
+     * updates delete them in batches of up to 32, and expire() deletes all of them, so until then they are
+     * still counted by size() and valueCount() and returned by keysToArray() and infoToArray().
+     */
+    public int insert(int k, String i, long ttl) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive: " + ttl);
+        }
+        long now = clock.millis();
+        long deadline = (ttl < WAVLExpiryQueue.NO_DEADLINE - now) ? now + ttl : WAVLExpiryQueue.NO_DEADLINE - 1;
+        int result = insert(k, i);
+        if (result >= 0) {
+            expiryQueue.setDeadline(k, deadline);
+        }
+        return result;
+    }
+
+    /**
+     * Inserts an item, then rebalances on the way back up from the new leaf.
+     *
+     * @param k key of the new item
+     * @param i info of the new item
+     * @return number of rebalancing operations, or -1 if an item with key k already exists in the tree
+     */
+    private int insertBottomUp(int k, String i) {
         WAVLNode searchResult;
         if (!empty()) {
             searchResult = searchRecursive(root, k);
             if (searchResult.key == k) {
-                return -1; // key already exists in the tree
+                return insertExisting(searchResult, i);
             }
         } else {
-            root = new WAVLNode(null, externalLeaf, externalLeaf, k, i);
+            root = newNode(null, k, i);
 
             updateClassMembersInsert(root);
 
             return 0;
         }
 
-        WAVLNode newNode = new WAVLNode(searchResult, externalLeaf, externalLeaf, k, i);
+        WAVLNode newNode = newNode(searchResult, k, i);
         // Insert newNode into the tree as the left or right child of searchResult
         if (k < searchResult.key) {
             searchResult.left = newNode;
@@ -97,29 +353,65 @@ public class WAVLTree {
      * returns -1 if an item with key k was not found in the tree.
      */
     public int delete(int k) {
+        expireDue(EXPIRY_BATCH);
+        return deleteKey(k);
+    }
+
+    /**
+     * Deletes an item using the active balance policy's algorithm.
+     *
+     * @param k key of the item to delete
+     * @return number of rebalancing operations, or -1 if an item with key k was not found in the tree
+     */
+    private int deleteKey(int k) {
         if (empty()) {
             return -1;
         }
 
+        int result;
+        if (lazyDelete) {
+            result = deleteLazily(k);
+        } else if (activePolicy == BalancePolicy.RELAXED) {
+            result = deleteWithoutRebalancing(k);
+        } else if (rebalanceMode == RebalanceMode.TOP_DOWN && activePolicy == BalancePolicy.WAVL) {
+            result = deleteTopDown(k); // AVL cascades aren't predicted during the descent, so AVL deletes bottom-up
+        } else {
+            result = deleteBottomUp(k);
+        }
+        if (balancePolicy == BalancePolicy.ADAPTIVE && result >= 0) {
+            windowDeletes++;
+            windowDeleteRebalanceOps += result;
+            adaptBalancePolicy();
+        }
+        return result;
+    }
+
+    /**
+     * Deletes an item, then rebalances on the way back up from the removed node.
+     * <p>
+     * Precondition: tree is not empty
+     *
+     * @param k key of the item to delete
+     * @return number of rebalancing operations, or -1 if an item with key k was not found in the tree
+     */
+    private int deleteBottomUp(int k) {
         WAVLNode searchResult = searchRecursive(root, k);
         if (searchResult.key != k) {
             return -1;
         }
 
         updateClassMembersDelete(searchResult);
-        // Eliminate root case
-        if (searchResult == root && root.isALeaf()) {
-            root = null;
-            return 0;
-        }
-
-        if (searchResult.isInnerNode()) {
-            searchResult = switchWithPredecessor(searchResult);
-        }
-
-        deleteNode(searchResult);
+        return removeNode(searchResult);
+    }
 
-        WAVLNode parent = searchResult.parent;
+    /**
+     * Unlinks a node from the tree and rebalances on the way back up.
+     *
+     * @param node node to remove, whose items were already accounted for as deleted
+     * @return number of rebalancing operations
+     */
+    private int removeNode(WAVLNode node) {
+        WAVLNode parent = unlinkNode(node).parent;
         if (parent == null) {
             // The node we deleted was the root
             return 0;
@@ -137,32 +429,286 @@ public class WAVLTree {
         return rebalanceDeleteRecursive(parent);
     }
 
+    /**
+     * Deletes an item without fixing ranks, which only keeps rank differences positive.
+     * Counts the deletion towards rebalanceDue() rather than rebuilding the tree in O(n) time here.
+     * <p>
+     * Precondition: tree is not empty
+     *
+     * @param k key of the item to delete
+     * @return 0, or -1 if an item with key k was not found in the tree
+     */
+    private int deleteWithoutRebalancing(int k) {
+        WAVLNode node = searchRecursive(root, k);
+        if (node.key != k) {
+            return -1;
+        }
+
+        updateClassMembersDelete(node);
+        unlinkNode(node);
+
+        deletesSinceRebuild++; // the rebuild is left to rebalance(), see rebalanceDue()
+        return 0;
+    }
+
+    /**
+     * Removes a node from the tree without fixing ranks. An inner node first trades places
+     * with its predecessor, so the node actually unlinked is a leaf or a unary node.
+     *
+     * @param node node to remove
+     * @return the unlinked node, whose parent pointer still points to its former parent
+     */
+    private WAVLNode unlinkNode(WAVLNode node) {
+        if (node == root && root.isALeaf()) {
+            root = null;
+            return node;
+        }
+        if (node.isInnerNode()) {
+            node = switchWithPredecessor(node);
+        }
+        deleteNode(node);
+        return node;
+    }
+
+    /**
+     * Deletes an item by marking its node as a tombstone, which takes a single search and no rebalancing.
+     * Tombstones stay until compact() or rebalance(), except that the last item's deletion drops them all.
+     * <p>
+     * Precondition: tree is not empty
+     *
+     * @param k key of the item to delete
+     * @return 0, or -1 if an item with key k was not found in the tree
+     */
+    private int deleteLazily(int k) {
+        WAVLNode node = searchRecursive(root, k);
+        if (node.key != k || node.isTombstone()) {
+            return -1;
+        }
+
+        markTombstone(node);
+        if (size == 0) {
+            // Only tombstones are left, drop them all at once
+            root = null;
+            tombstoneCount = 0;
+        }
+        return 0; // removing tombstones is left to compact() and rebalance(), see rebalanceDue()
+    }
+
+    /**
+     * public int delete(int k, String i)
+     * <p>
+     * deletes a single info value i of key k, if it is there.
+     * the key's node is removed from the tree only when i was its last value.
+     * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
+     * returns -1 if key k with info i was not found in the tree.
+     */
+    public int delete(int k, String i) {
+        expireDue(EXPIRY_BATCH);
+        if (empty()) {
+            return -1;
+        }
+
+        WAVLNode node = searchRecursive(root, k);
+        if (node.key != k || node.isTombstone()) {
+            return -1;
+        }
+        int index = node.indexOfInfo(i);
+        if (index < 0) {
+            return -1;
+        }
+        if (node.valueCount() == 1) {
+            return deleteKey(k); // i is the key's only value
+        }
+
+        node.removeInfo(index);
+        valueCount--;
+        if (hashed) {
+            addHashToPath(node, null, -itemHash(k, i));
+        }
+        if (changeFeed != null) {
+            changeFeed.publish(WAVLChangeFeed.ChangeType.DELETE, k, i);
+        }
+        return 0;
+    }
+
+    /**
+     * public String[] searchAll(int k)
+     * <p>
+     * returns all info values of key k in insertion order,
+     * or an empty array if k is not in the tree
+     */
+    public String[] searchAll(int k) {
+        if (empty()) {
+            return new String[0];
+        }
+
+        WAVLNode result = searchRecursive(root, k);
+        if (result.key != k || isExpired(result)) {
+            return new String[0];
+        }
+        String[] arr = new String[result.valueCount()];
+        result.copyInfo(arr, 0);
+        return arr;
+    }
+
+    /**
+     * public int count(int k)
+     * <p>
+     * returns the number of info values of key k, or 0 if k is not in the tree
+     */
+    public int count(int k) {
+        if (empty()) {
+            return 0;
+        }
+
+        WAVLNode result = searchRecursive(root, k);
+        return (result.key == k && !isExpired(result)) ? result.valueCount() : 0;
+    }
+
+    /**
+     * public void diff(WAVLTree other, DiffVisitor visitor)
+     * <p>
+     * reports every key which is only in this tree, only in other, or in both with different info,
+     * in ascending key order. Info values are compared with equals. expired items which were not deleted yet
+     * are skipped, like deleted ones.
+     * walks both trees once in order, which takes O(n + m) time and no extra space.
+     * <p>
+     * if both trees are hashed and neither has items with a time to live, key ranges whose range hashes are
+     * equal are skipped, and a range which differs is halved until it holds a few nodes, which are then walked.
+     * a differing key costs at most 32 halvings of O(log n + log m) time each, so replicas which mostly agree
+     * are compared in far less than O(n + m) time. a difference whose range hashes collide is missed, with
+     * probability about 2^-64 per range. hashes include expired items, so trees with a time to live are walked.
+     * <p>
+     * precondition: neither tree is a multimap
+     */
+    public void diff(WAVLTree other, DiffVisitor visitor) {
+        if (multimap || other.multimap) {
+            throw new IllegalArgumentException("diff of multimap trees is not supported");
+        }
+
+        if (hashed && other.hashed && expiryQueue.isEmpty() && other.expiryQueue.isEmpty()) {
+            diffHashed(other, Integer.MIN_VALUE, Integer.MAX_VALUE, visitor);
+        } else {
+            diffWalk(other, firstVisibleNode(Integer.MIN_VALUE, Integer.MAX_VALUE),
+                    other.firstVisibleNode(Integer.MIN_VALUE, Integer.MAX_VALUE), Integer.MAX_VALUE, visitor);
+        }
+    }
+
+    /**
+     * public int merge(WAVLTree other, ConflictResolver resolver)
+     * <p>
+     * inserts every item of other whose key is not in this tree. for a key in both trees with different info,
+     * the info returned by resolver is kept. items whose key is only in this tree are kept as well.
+     * an item which takes its info from other also takes its remaining time to live, if it has one,
+     * while info created by resolver keeps the deadline of the item in this tree. expired items are ignored.
+     * other is not modified.
+     * returns the number of items which were inserted or whose info was replaced.
+     * <p>
+     * precondition: neither tree is a multimap
+     */
+    public int merge(final WAVLTree other, final ConflictResolver resolver) {
+        // The tree can't be updated while diff walks it, so collect the updates first
+        final int[] keys = new int[other.size];
+        final String[] info = new String[other.size];
+        final long[] ttl = new long[other.size]; // remaining time to live from other, 0 for none, -1 to keep ours
+        final int[] updateCount = new int[1];
+        diff(other, new DiffVisitor() {
+            public void inserted(int k, String otherInfo) {
+                keys[updateCount[0]] = k;
+                ttl[updateCount[0]] = other.remainingTtl(k);
+                info[updateCount[0]++] = otherInfo;
+            }
+
+            public void deleted(int k, String thisInfo) {
+                // keys only in this tree are kept
+            }
+
+            public void changed(int k, String thisInfo, String otherInfo) {
+                String resolved = resolver.resolve(k, thisInfo, otherInfo);
+                if (!equalInfo(resolved, thisInfo)) {
+                    keys[updateCount[0]] = k;
+                    ttl[updateCount[0]] = equalInfo(resolved, otherInfo) ? other.remainingTtl(k) : -1;
+                    info[updateCount[0]++] = resolved;
+                }
+            }
+        });
+
+        for (int j = 0; j < updateCount[0]; j++) {
+            if (insert(keys[j], info[j]) < 0) {
+                replaceInfo(searchRecursive(root, keys[j]), info[j]);
+            }
+            if (ttl[j] > 0) {
+                long now = clock.millis();
+                expiryQueue.setDeadline(keys[j],
+                        (ttl[j] < WAVLExpiryQueue.NO_DEADLINE - now) ? now + ttl[j] : WAVLExpiryQueue.NO_DEADLINE - 1);
+            } else if (ttl[j] == 0) {
+                expiryQueue.removeDeadline(keys[j]);
+            }
+        }
+        return updateCount[0];
+    }
+
+    /**
+     * public long rootHash()
+     * <p>
+     * returns a hash of all items in the tree, or 0 if the tree is empty. takes O(1) time.
+     * trees holding the same items have the same hash, whatever their shape or the order of updates.
+     * the hash detects accidental divergence between replicas, it is not secure against forgery.
+     * <p>
+     * precondition: the tree was created with hashing
+     */
+    public long rootHash() {
+        checkHashed();
+        return (root != null) ? hashOf(root) : 0;
+    }
+
+    /**
+     * public long rangeHash(int low, int high)
+     * <p>
+     * returns a hash of the items with keys between low and high (inclusive), or 0 if there are none.
+     * equals the rootHash() of a tree holding only those items. takes O(log n) time, so two replicas can
+     * confirm that they agree on a key range, or narrow down where they differ, without exchanging items.
+     * <p>
+     * precondition: the tree was created with hashing
+     */
+    public long rangeHash(int low, int high) {
+        checkHashed();
+        if (low > high) {
+            return 0;
+        }
+        return hashBelow(high + 1L) - hashBelow(low);
+    }
+
     /**
      * public String min()
      * <p>
      * Returns the info of the item with the smallest key in the tree,
-     * or null if the tree is empty
+     * or null if the tree is empty.
+     * Expired items which were not deleted yet are skipped, so this may also return null if all items expired.
      */
     public String min() {
         if (empty()) {
             return null;
         }
 
-        return min.info;
+        WAVLNode node = nextUnexpiredNode(min);
+        return (node != null) ? node.info() : null;
     }
 
     /**
      * public String max()
      * <p>
      * Returns the info of the item with the largest key in the tree,
-     * or null if the tree is empty
+     * or null if the tree is empty.
+     * Expired items which were not deleted yet are skipped, so this may also return null if all items expired.
      */
     public String max() {
         if (empty()) {
             return null;
         }
 
-        return max.info;
+        WAVLNode node = previousUnexpiredNode(max);
+        return (node != null) ? node.info() : null;
     }
 
     /**
@@ -170,9 +716,10 @@ public class WAVLTree {
      * <p>
      * Returns a sorted array which contains all keys in the tree,
      * or an empty array if the tree is empty.
+     * In a multimap, a key appears once for each of its info values.
      */
     public int[] keysToArray() {
-        int[] arr = new int[size];
+        int[] arr = new int[valueCount];
         if (root != null) {
             keysToArrayRecursive(arr, 0, root);
         }
@@ -185,19 +732,58 @@ public class WAVLTree {
      * Returns an array which contains all info in the tree,
      * sorted by their respective keys,
      * or an empty array if the tree is empty.
+     * In a multimap, the values of each key appear in insertion order, aligned with keysToArray().
      */
     public String[] infoToArray() {
-        String[] arr = new String[size];
+        String[] arr = new String[valueCount];
         if (root != null) {
             infoToArrayRecursive(arr, 0, root);
         }
         return arr;
     }
 
+    /**
+     * public int[] keysInRange(int low, int high)
+     * <p>
+     * Returns a sorted array which contains the keys between low and high (inclusive),
+     * or an empty array if there are none. Takes O(log n + r) time for r keys in the range.
+     * In a multimap, a key appears once for each of its info values.
+     * Expired items which were not deleted yet are skipped, as search does.
+     */
+    public int[] keysInRange(int low, int high) {
+        WAVLNode first = firstVisibleNode(low, high);
+        int[] arr = new int[countValuesInRange(first, high)];
+        int index = 0;
+        for (WAVLNode node = first; node != null; node = nextVisibleNode(node, high)) {
+            for (int j = 0; j < node.valueCount(); j++) {
+                arr[index++] = node.key;
+            }
+        }
+        return arr;
+    }
+
+    /**
+     * public String[] infoInRange(int low, int high)
+     * <p>
+     * Returns an array which contains the info of the keys between low and high (inclusive),
+     * sorted by their respective keys, or an empty array if there are none.
+     * In a multimap, the values of each key appear in insertion order, aligned with keysInRange().
+     * Expired items which were not deleted yet are skipped, as search does.
+     */
+    public String[] infoInRange(int low, int high) {
+        WAVLNode first = firstVisibleNode(low, high);
+        String[] arr = new String[countValuesInRange(first, high)];
+        int index = 0;
+        for (WAVLNode node = first; node != null; node = nextVisibleNode(node, high)) {
+            index += node.copyInfo(arr, index);
+        }
+        return arr;
+    }
+
     /**
      * public int size()
      * <p>
-     * Returns the number of nodes in the tree.
+     * Returns the number of items in the tree, not counting tombstones.
      * <p>
      * precondition: none
      * postcondition: none
@@ -206,15 +792,495 @@ public class WAVLTree {
         return size;
     }
 
-
-    // ************************************* Helper functions *************************************************
+    /**
+     * public int valueCount()
+     * <p>
+     * Returns the number of info values in the tree, which is the length of keysToArray() and infoToArray().
+     * Equal to size() unless the tree is a multimap.
+     */
+    public int valueCount() {
+        return valueCount;
+    }
 
     /**
-     * Rebalances the tree after insertion by the WAVL algorithm rules
-     *
-     * @param node parent of the newly inserted node
-     * @return number of rebalancing operations
-     * (counting promote/demote/rotate as a single operation and double-rotate as two operations)
+     * public int height()
+     * <p>
+     * Returns the number of edges on the longest route from the root to a leaf,
+     * or -1 if the tree is empty. Takes O(n) time.
+     */
+    public int height() {
+        return (root != null) ? heightRecursive(root) : -1;
+    }
+
+    /**
+     * public void setBalancePolicy(BalancePolicy balancePolicy)
+     * <p>
+     * Changes the rank rule kept by the tree. Switching to AVL, or away from RELAXED, rebuilds the tree
+     * in O(n) time, since its current shape may break the new rule.
+     * With ADAPTIVE, the policy is re-evaluated after every window of max(4096, n) operations.
+     */
+    public void setBalancePolicy(BalancePolicy balancePolicy) {
+        this.balancePolicy = balancePolicy;
+        resetPolicyWindow();
+        switchPolicy((balancePolicy == BalancePolicy.ADAPTIVE) ? activePolicy : balancePolicy);
+    }
+
+    /**
+     * public BalancePolicy activeBalancePolicy()
+     * <p>
+     * Returns the rank rule the tree currently keeps, which an ADAPTIVE tree chose by itself.
+     * Never returns ADAPTIVE.
+     */
+    public BalancePolicy activeBalancePolicy() {
+        return activePolicy;
+    }
+
+    /**
+     * public void rebalance()
+     * <p>
+     * Rebuilds the tree into a perfectly balanced one in O(n) time, which keeps every rank rule,
+     * leaving out the tombstones of lazy deletion.
+     * A RELAXED tree should call this while idle once rebalanceDue() is true, since deletions never rebuild.
+     */
+    public void rebalance() {
+        rebuild();
+    }
+
+    /**
+     * public boolean rebalanceDue()
+     * <p>
+     * Returns true once the deletions which a RELAXED tree made without rebalancing since it was last
+     * rebuilt outnumber its items, or the tombstones left by lazy deletion do, so that calling rebalance()
+     * costs O(1) amortized per deletion.
+     */
+    public boolean rebalanceDue() {
+        return deletesSinceRebuild > size || tombstoneCount > size;
+    }
+
+    /**
+     * public void setLazyDelete(boolean lazyDelete)
+     * <p>
+     * With lazy deletion, delete(k) marks the item's node as a tombstone in O(log n) time without any
+     * rebalancing, and reinserting the key reuses the node. Queries skip tombstones. Deletions never remove
+     * them: compact() removes them a few at a time, and rebalance() removes all of them in O(n) time,
+     * which costs O(1) amortized per deletion once rebalanceDue() is true. Both are meant for idle time.
+     * Turning lazy deletion off rebuilds the tree without its tombstones.
+     */
+    public void setLazyDelete(boolean lazyDelete) {
+        this.lazyDelete = lazyDelete;
+        if (!lazyDelete && tombstoneCount > 0) {
+            rebuild();
+        }
+    }
+
+    /**
+     * public int tombstoneCount()
+     * <p>
+     * Returns the number of tombstones left in the tree by lazy deletion.
+     */
+    public int tombstoneCount() {
+        return tombstoneCount;
+    }
+
+    /**
+     * public int compact(int maxNodes)
+     * <p>
+     * Removes tombstones from the tree, rebalancing after each one, and stops after visiting maxNodes nodes.
+     * Every call continues in key order from where the previous call stopped, wrapping around at the end,
+     * so compaction can be spread over short idle periods. Takes O(maxNodes log n) time; a RELAXED tree
+     * removes tombstones without rebalancing, which counts towards rebalanceDue().
+     * returns the number of tombstones removed.
+     */
+    public int compact(int maxNodes) {
+        int removedCount = 0;
+        for (int visited = 0; visited < maxNodes && tombstoneCount > 0; visited++) {
+            WAVLNode node = (compactionKey <= Integer.MAX_VALUE) ? firstNodeAtLeast((int) compactionKey) : null;
+            if (node == null) {
+                compactionKey = Integer.MIN_VALUE; // wrap around to the smallest key
+                continue;
+            }
+            int key = node.key; // removing a tombstone may move another item into node
+            if (node.isTombstone()) {
+                removeTombstone(node);
+                removedCount++;
+            }
+            compactionKey = key + 1L;
+        }
+        return removedCount;
+    }
+
+    /**
+     * public int expire()
+     * <p>
+     * Deletes every item whose time to live has passed, taking O(log n) time per item.
+     * returns the number of items deleted.
+     */
+    public int expire() {
+        return expireDue(Integer.MAX_VALUE);
+    }
+
+    /**
+     * public void setClock(Clock clock)
+     * <p>
+     * Replaces the clock whose millis() are used for the deadlines of items with a time to live,
+     * the system clock by default. Deadlines which were already set are kept as they are.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * public void setSearchCache(int capacity)
+     * <p>
+     * Puts a cache of key to node with the given number of slots, rounded up to a power of 2, in front of
+     * search, or removes the cache if capacity is 0. A key maps to a single slot, so a cached search takes
+     * one probe, and a key found by a missed search replaces the slot's previous key.
+     * Deleting a key, or moving its item to another node, clears its slot.
+     * Resets the hit and miss counts.
+     */
+    public void setSearchCache(int capacity) {
+        if (capacity < 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 0 and 2^30: " + capacity);
+        }
+        if (capacity == 0) {
+            cacheKeys = null;
+            cacheNodes = null;
+        } else {
+            int slotCount = Integer.highestOneBit(capacity);
+            if (slotCount < capacity) {
+                slotCount <<= 1;
+            }
+            cacheKeys = new int[slotCount];
+            cacheNodes = new WAVLNode[slotCount];
+        }
+        cacheHits = 0;
+        cacheMisses = 0;
+    }
+
+    /**
+     * public long searchCacheHits()
+     * <p>
+     * Returns the number of searches answered by the search cache since it was set.
+     */
+    public long searchCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * public long searchCacheMisses()
+     * <p>
+     * Returns the number of searches which missed the search cache since it was set,
+     * including searches for keys which are not in the tree.
+     */
+    public long searchCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * public void setChangeFeed(WAVLChangeFeed changeFeed)
+     * <p>
+     * Publishes every following insertion and deletion of an info value to changeFeed,
+     * in the order they are applied. Deleting a key of a multimap publishes one event per value.
+     * Pass null to stop publishing.
+     * <p>
+     * Precondition: the tree is updated by a single thread, which is the feed's only producer
+     */
+    public void setChangeFeed(WAVLChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
+    /**
+     * public void validate()
+     * <p>
+     * Checks that the tree keeps all of its invariants: keys are in BST order, parent pointers match child
+     * pointers, the rank rule of the active balance policy holds (rank differences of 1 or 2 and no 2-2 leaves
+     * for WAVL, no 2-2 nodes at all for AVL, positive rank differences for RELAXED), size, valueCount,
+     * tombstoneCount, min and max match the nodes in the tree, and in a hashed tree every subtree hash
+     * matches its items.
+     * Takes O(n) time.
+     * <p>
+     * throws IllegalStateException describing the first violation found
+     */
+    public void validate() {
+        if (root == null) {
+            if (size != 0 || valueCount != 0 || min != null || max != null) {
+                throw new IllegalStateException("Empty tree has size " + size + ", value count " + valueCount
+                        + ", min " + min + " and max " + max);
+            }
+            return;
+        }
+        if (root.parent != null) {
+            throw new IllegalStateException("Root " + root.key + " has a parent");
+        }
+        if (externalLeaf.rank != -1) {
+            throw new IllegalStateException("External leaf has rank " + externalLeaf.rank);
+        }
+
+        long[] counts = new long[4]; // number of nodes, values, tombstones and nodes with a deadline
+        validateRecursive(root, Long.MIN_VALUE, Long.MAX_VALUE, counts);
+        if (counts[0] != size) {
+            throw new IllegalStateException("Tree has " + counts[0] + " nodes but size is " + size);
+        }
+        if (counts[1] != valueCount) {
+            throw new IllegalStateException("Tree has " + counts[1] + " values but value count is " + valueCount);
+        }
+        if (counts[2] != tombstoneCount) {
+            throw new IllegalStateException("Tree has " + counts[2] + " tombstones but tombstone count is "
+                    + tombstoneCount);
+        }
+        if (counts[3] != expiryQueue.size()) {
+            throw new IllegalStateException("Tree has " + counts[3] + " items with a deadline but the expiry queue has "
+                    + expiryQueue.size());
+        }
+        if (size == 0) {
+            throw new IllegalStateException("Tree holds only tombstones");
+        }
+
+        // min and max are the extreme nodes which are not tombstones
+        WAVLNode leftmost = root;
+        while (leftmost.left != externalLeaf) {
+            leftmost = leftmost.left;
+        }
+        if (leftmost.isTombstone()) {
+            leftmost = nextLiveNode(leftmost);
+        }
+        if (min != leftmost) {
+            throw new IllegalStateException("Min points to " + (min == null ? null : min.key)
+                    + " instead of " + leftmost.key);
+        }
+        WAVLNode rightmost = root;
+        while (rightmost.right != externalLeaf) {
+            rightmost = rightmost.right;
+        }
+        if (rightmost.isTombstone()) {
+            rightmost = previousLiveNode(rightmost);
+        }
+        if (max != rightmost) {
+            throw new IllegalStateException("Max points to " + (max == null ? null : max.key)
+                    + " instead of " + rightmost.key);
+        }
+    }
+
+
+    // ************************************* Helper functions *************************************************
+
+    /**
+     * Handles insertion of a key which is already in the tree.
+     *
+     * @param node node with the inserted key
+     * @param i    inserted info
+     * @return 0 if node was a tombstone or expired, or if i was appended to node's info values,
+     * or -1 if the tree is not a multimap
+     */
+    private int insertExisting(WAVLNode node, String i) {
+        if (!node.isTombstone() && isExpired(node)) {
+            markTombstone(node); // the expired items are deleted first, then the node is reused like a tombstone
+        }
+        if (node.isTombstone()) {
+            // Reuse the tombstone's node, which is already in place
+            node.info = i;
+            tombstoneCount--;
+            updateClassMembersInsert(node);
+            return 0;
+        }
+        if (!multimap) {
+            return -1; // key already exists in the tree
+        }
+        node.appendInfo(i);
+        valueCount++;
+        if (hashed) {
+            addHashToPath(node, null, itemHash(node.key, i));
+        }
+        if (changeFeed != null) {
+            changeFeed.publish(WAVLChangeFeed.ChangeType.INSERT, node.key, i);
+        }
+        return 0; // no node was added, so no rebalancing is needed
+    }
+
+    /**
+     * Inserts an item in a single descent from the root.
+     * <p>
+     * On the way down we remember the deepest node which is not 1,1, since a promotion cascade started
+     * at the new leaf stops there. After attaching the new leaf only the nodes below that safe node are
+     * promoted, and at most one rotation is performed at the safe node itself.
+     *
+     * @param k key of the new item
+     * @param i info of the new item
+     * @return number of rebalancing operations, or -1 if an item with key k already exists in the tree
+     */
+    private int insertTopDown(int k, String i) {
+        if (empty()) {
+            root = newNode(null, k, i);
+            updateClassMembersInsert(root);
+            return 0;
+        }
+
+        WAVLNode safeNode = null; // null means a promotion cascade would reach the root
+        WAVLNode node = root;
+        while (true) {
+            if (k == node.key) {
+                return insertExisting(node, i);
+            }
+            if (node.getLeftChildRankDiff() != 1 || node.getRightChildRankDiff() != 1) {
+                safeNode = node;
+            }
+            WAVLNode next = (k < node.key) ? node.left : node.right;
+            if (next == externalLeaf) {
+                break;
+            }
+            node = next;
+        }
+
+        WAVLNode newNode = newNode(node, k, i);
+        if (k < node.key) {
+            node.left = newNode;
+        } else {
+            node.right = newNode;
+        }
+        updateClassMembersInsert(newNode);
+
+        if (safeNode == node) {
+            return 0; // new leaf replaced a 2-child external leaf
+        }
+
+        // Every node between the safe node and the new leaf is 1,1 and gets promoted
+        int operationCount = 0;
+        WAVLNode current = (safeNode == null) ? root : (k < safeNode.key ? safeNode.left : safeNode.right);
+        while (current != newNode) {
+            current.promote();
+            operationCount++;
+            current = (k < current.key) ? current.left : current.right;
+        }
+
+        if (safeNode == null) {
+            return operationCount; // the root was promoted
+        }
+        // The safe node either absorbs the promotion or needs a (double) rotation, so this does not cascade
+        return operationCount + rebalanceInsert(safeNode);
+    }
+
+    /**
+     * Deletes an item in a single descent from the root.
+     * <p>
+     * The descent continues past the item to its predecessor when the item is an inner node, and remembers
+     * the deepest node at which a demotion cascade started at the removed node stops.
+     * Only the nodes below that safe node are demoted, and at most one (double) rotation is performed at the
+     * safe node itself.
+     * <p>
+     * Precondition: tree is not empty
+     *
+     * @param k key of the item to delete
+     * @return number of rebalancing operations, or -1 if an item with key k was not found in the tree
+     */
+    private int deleteTopDown(int k) {
+        WAVLNode safeNode = null; // null means a demotion cascade would reach the root
+        WAVLNode parent = null;
+        WAVLNode node = root;
+        WAVLNode target = null;
+        while (true) {
+            if (target == null && k == node.key) {
+                target = node;
+                if (!target.isInnerNode()) {
+                    break;
+                }
+            }
+            // Once the target was found, keys on the way to its predecessor are all smaller than k
+            WAVLNode next = (k <= node.key) ? node.left : node.right;
+            if (next == externalLeaf) {
+                return -1;
+            }
+            if (parent != null && stopsDeleteCascade(parent, node)) {
+                safeNode = parent;
+            }
+            parent = node;
+            node = next;
+            if (target != null && node.right == externalLeaf) {
+                break; // reached the predecessor
+            }
+        }
+        WAVLNode removed = node;
+        if (parent != null && stopsDeleteCascadeAtParent(parent, removed)) {
+            safeNode = parent;
+        }
+
+        updateClassMembersDelete(target);
+        // Eliminate root case
+        if (target == root && root.isALeaf()) {
+            root = null;
+            return 0;
+        }
+
+        // Demote every node between the safe node and the removed node's parent
+        int operationCount = 0;
+        if (parent != null) {
+            WAVLNode current = (safeNode == null) ? root : (k <= safeNode.key ? safeNode.left : safeNode.right);
+            while (current != removed) {
+                WAVLNode next = (k <= current.key) ? current.left : current.right;
+                if (next == removed && current.rank - removed.rank == 1) {
+                    current.demote(); // becomes a 2-2 leaf once removed is gone
+                    operationCount++;
+                } else if (current.rank - current.getOtherChild(next).rank == 2) {
+                    current.demote();
+                    operationCount++;
+                } else {
+                    current.getOtherChild(next).demote();
+                    current.demote();
+                    operationCount += 2;
+                }
+                current = next;
+            }
+        }
+
+        if (target != removed) {
+            switchWithPredecessor(target);
+        }
+        deleteNode(removed);
+
+        if (safeNode == null) {
+            return operationCount;
+        }
+        // The safe node either absorbs the demotion or needs a (double) rotation, so this does not cascade
+        return operationCount + rebalanceDeleteRecursive(safeNode);
+    }
+
+    /**
+     * Checks whether a demotion of child stops at node, rather than making node demote as well.
+     *
+     * @param node  node on the deletion path
+     * @param child node's child on the deletion path
+     * @return true iff rebalancing after child's demotion does not change node's rank
+     */
+    private boolean stopsDeleteCascade(WAVLNode node, WAVLNode child) {
+        if (node.rank - child.rank == 1) {
+            return true; // child becomes a 2-child
+        }
+        // child becomes a 3-child, a rotation is needed unless the sibling is a 2-child or a 2-2 node
+        WAVLNode sibling = node.getOtherChild(child);
+        return node.rank - sibling.rank == 1
+                && !(sibling.getLeftChildRankDiff() == 2 && sibling.getRightChildRankDiff() == 2);
+    }
+
+    /**
+     * Checks whether removing the given node stops rebalancing at its parent.
+     *
+     * @param parent  parent of the node to be removed
+     * @param removed leaf or unary node to be removed
+     * @return true iff rebalancing after the removal does not change parent's rank
+     */
+    private boolean stopsDeleteCascadeAtParent(WAVLNode parent, WAVLNode removed) {
+        if (parent.rank - removed.rank == 1) {
+            // parent only demotes if it becomes a 2-2 leaf
+            return !(removed.isALeaf() && parent.getOtherChild(removed) == externalLeaf);
+        }
+        return stopsDeleteCascade(parent, removed);
+    }
+
+    /**
+     * Rebalances the tree after insertion by the WAVL algorithm rules
+     *
+     * @param node parent of the newly inserted node
+     * @return number of rebalancing operations
+     * (counting promote/demote/rotate as a single operation and double-rotate as two operations)
      */
     private int rebalanceInsert(WAVLNode node) {
         int operationCount = 0;
@@ -283,7 +1349,7 @@ public class WAVLTree {
             return 1;
         } else {
             // Node has a child with 0 rank diff, and doesn't have a child with 1 rank diff,
-            // so it must have a child with 2 rank diff
+            // so it must have a child with 2 rank diff (or more, in a relaxed tree)
 
             // Case 2 or 3
             // Check which direction of case 2 or 3 it is
@@ -313,11 +1379,15 @@ public class WAVLTree {
      * @param node node to be removed
      */
     private void deleteNode(WAVLNode node) {
+        if (hashed) {
+            // The node's own items, which its ancestors lose
+            addHashToPath(node.parent, null, -(hashOf(node) - hashOf(node.left) - hashOf(node.right)));
+        }
         if (node.isALeaf()) {
             swapNodes(node, externalLeaf);
         } else {
-            // Unary node
-            swapNodes(node, node.getChildWithRankDiff(1));
+            // Unary node, whose child has a rank difference of 1 unless the tree is relaxed
+            swapNodes(node, (node.left != externalLeaf) ? node.left : node.right);
         }
     }
 
@@ -347,11 +1417,17 @@ public class WAVLTree {
 
                 node.demote();
                 diffOneChild3.promote();
-                if (node.isALeaf() && node.getLeftChildRankDiff() == 2 && node.getRightChildRankDiff() == 2) {
+                int operationCount = 1;
+                if (node.isTwoTwo() && (node.isALeaf() || activePolicy == BalancePolicy.AVL)) {
                     node.demote();
-                    return 2;
+                    operationCount++;
                 }
-                return 1;
+                if (activePolicy == BalancePolicy.AVL && diffOneChild3.isTwoTwo()) {
+                    // The rotated subtree lost height, which AVL passes on to the ancestors
+                    diffOneChild3.demote();
+                    return operationCount + 1 + rebalanceDeleteRecursive(diffOneChild3.parent);
+                }
+                return operationCount;
             case 4:
                 WAVLNode diffOneChild4 = node.getChildWithRankDiff(1);
                 WAVLNode diffOneGrandChild = diffOneChild4.getChildWithRankDiff(1);
@@ -363,6 +1439,11 @@ public class WAVLTree {
                 diffOneChild4.demote();
                 diffOneGrandChild.promote();
                 diffOneGrandChild.promote();
+                if (activePolicy == BalancePolicy.AVL) {
+                    // The new subtree root is 2-2, AVL demotes it and passes the lost height on
+                    diffOneGrandChild.demote();
+                    return 3 + rebalanceDeleteRecursive(diffOneGrandChild.parent);
+                }
                 return 2;
         }
         return 0; // unreachable code
@@ -378,6 +1459,9 @@ public class WAVLTree {
         if (node == null) {
             return 0; // we reached the root of the tree, no rebalancing needed
         } else if (!node.hasChildWithRankDiff(3)) {
+            if (activePolicy == BalancePolicy.AVL && node.isTwoTwo()) {
+                return 1; // AVL allows no 2-2 nodes, demoting it shortens the subtree like case 1
+            }
             return 0; // no rebalancing is needed
         }
 
@@ -416,6 +1500,7 @@ public class WAVLTree {
      * @param node2 node to swap to
      */
     private void swapNodes(WAVLNode node1, WAVLNode node2) {
+        uncacheKey(node1.key); // node1 leaves the tree
         // Swap parent's child pointer
         if (node1 != root) {
             if (node1.isLeftChild()) {
@@ -458,144 +1543,764 @@ public class WAVLTree {
                 return root;
             }
         }
-        return null; // unreachable code
+        return null; // unreachable code
+    }
+
+    /**
+     * Rotates subtree around the edge connecting node1 and node2.
+     * Assumes node1 is node2's parent.
+     *
+     * @param node1 parent node to rotate around
+     * @param node2 child node that would become parent
+     */
+    private void rotate(WAVLNode node1, WAVLNode node2) {
+        WAVLNode node1Parent = node1.parent; // temporarily save so it's not lost on rotation
+
+        if (hashed) {
+            // node2 takes over node1's whole subtree, node1 keeps it minus node2 and node2's outer subtree
+            WAVLNode movedChild = node2.isLeftChild() ? node2.right : node2.left;
+            long subtreeHash = hashOf(node1);
+            ((HashedNode) node1).hash = subtreeHash - hashOf(node2) + hashOf(movedChild);
+            ((HashedNode) node2).hash = subtreeHash;
+        }
+
+        if (node2.isLeftChild()) {
+            rotateRight(node1, node2);
+        } else {
+            rotateLeft(node1, node2);
+        }
+
+        // Fix parent pointers
+        node1.parent = node2;
+        if (node2 != externalLeaf) {
+            node2.parent = node1Parent;
+        }
+
+        // If not at the tree's root, fix node1's child pointer
+        if (node1Parent != null) {
+            if (node1Parent.left == node1) {
+                node1Parent.left = node2;
+            } else {
+                node1Parent.right = node2;
+            }
+        }
+
+        // If node1 was the tree root, update root pointer
+        if (root == node1) {
+            root = node2;
+        }
+    }
+
+    /**
+     * Performs a left-rotation on the subtree around the edge connecting node1 and node2.
+     *
+     * @param node1 parent node to rotate around
+     * @param node2 child node that would become parent
+     */
+    private void rotateLeft(WAVLNode node1, WAVLNode node2) {
+        WAVLNode node2LeftChild = node2.left; // temporarily save so it's not lost on rotation
+
+        // Reassign pointers
+        node2.left = node1;
+        node1.right = node2LeftChild;
+        node2LeftChild.parent = node1;
+    }
+
+    /**
+     * Performs a right-rotation on the subtree around the edge connecting node1 and node2.
+     *
+     * @param node1 parent node to rotate around
+     * @param node2 child node that would become parent
+     */
+    private void rotateRight(WAVLNode node1, WAVLNode node2) {
+        WAVLNode node2RightChild = node2.right; // temporarily save so it's not lost on rotation
+
+        // Reassign pointers
+        node2.right = node1;
+        node1.left = node2RightChild;
+        node2RightChild.parent = node1;
+    }
+
+    /**
+     * Performs a double rotation, first on node2 and node3, and then on node1 and node2.
+     *
+     * @param node1 highest node
+     * @param node2 middle node
+     * @param node3 lowest node
+     */
+    private void doubleRotate(WAVLNode node1, WAVLNode node2, WAVLNode node3) {
+        rotate(node2, node3);
+        rotate(node1, node3);
+    }
+
+    /**
+     * perform an info and key switch between the given node and his predecessor.
+     * returns the predecessor after the switch.
+     *
+     * @param node node we want to switch with his predecessor
+     * @return the predecessor node with the given node's info and key
+     */
+    private WAVLNode switchWithPredecessor(WAVLNode node) {
+        WAVLNode predecessor = findPredecessor(node);
+        uncacheKey(node.key);
+        uncacheKey(predecessor.key);
+        if (hashed) {
+            // Subtrees between the predecessor and node trade the predecessor's items for node's
+            long nodeItemsHash = hashOf(node) - hashOf(node.left) - hashOf(node.right);
+            long predecessorItemsHash = hashOf(predecessor) - hashOf(predecessor.left) - hashOf(predecessor.right);
+            addHashToPath(predecessor, node, nodeItemsHash - predecessorItemsHash);
+        }
+        Object tempInfo = node.info;
+        int tempKey = node.key;
+        node.info = predecessor.info;
+        node.key = predecessor.key;
+        predecessor.info = tempInfo;
+        predecessor.key = tempKey;
+        if (min == predecessor) {
+            min = node; // the minimum item moved into node
+        }
+        if (max == predecessor) {
+            max = node; // only when the items following it are all tombstones
+        }
+        return predecessor;
+    }
+
+    /**
+     * Find the predecessor of the given node.
+     *
+     * @param node the node whose predecessor we are looking for
+     * @return node's predecessor
+     */
+    private WAVLNode findPredecessor(WAVLNode node) {
+        WAVLNode predecessor = node.left;
+        while (predecessor.right != externalLeaf) {
+            predecessor = predecessor.right;
+        }
+        return predecessor;
+    }
+
+    /**
+     * Find the successor of the given node.
+     *
+     * @param node the node whose successor we are looking for
+     * @return node's successor
+     */
+    private WAVLNode findSuccessor(WAVLNode node) {
+        WAVLNode successor = node.right;
+        while (successor.left != externalLeaf) {
+            successor = successor.left;
+        }
+        return successor;
+    }
+
+    /**
+     * Clears the operation counts of the adaptive policy's window.
+     */
+    private void resetPolicyWindow() {
+        windowSearches = 0;
+        windowInserts = 0;
+        windowDeletes = 0;
+        windowDeleteRebalanceOps = 0;
+    }
+
+    /**
+     * Picks the active policy of an ADAPTIVE tree once a window of operations is complete.
+     * <p>
+     * Read-mostly windows get AVL's lower height. Delete-heavy windows whose deletions paid for rebalancing
+     * get RELAXED. Each policy is kept until its share drops 10 points below the share which selected it,
+     * so a workload near a threshold doesn't rebuild the tree every window.
+     * The window is at least n operations long, which amortizes a rebuild to O(1) per operation.
+     */
+    private void adaptBalancePolicy() {
+        int operations = windowSearches + windowInserts + windowDeletes;
+        if (operations < Math.max(ADAPTIVE_WINDOW, size)) {
+            return;
+        }
+
+        int updates = windowInserts + windowDeletes;
+        int readPercent = (activePolicy == BalancePolicy.AVL) ? 80 : 90;
+        int deletePercent = (activePolicy == BalancePolicy.RELAXED) ? 50 : 60;
+        BalancePolicy policy = BalancePolicy.WAVL;
+        if (100L * windowSearches >= (long) readPercent * operations) {
+            policy = BalancePolicy.AVL;
+        } else if (100L * windowDeletes >= (long) deletePercent * updates
+                && (activePolicy == BalancePolicy.RELAXED || 2 * windowDeleteRebalanceOps >= windowDeletes)) {
+            // A relaxed tree reports no deletion rebalancing, so only the share of deletions keeps it relaxed
+            policy = BalancePolicy.RELAXED;
+        }
+        switchPolicy(policy);
+        resetPolicyWindow();
+    }
+
+    /**
+     * Starts keeping another rank rule, rebuilding the tree if its current shape may break the rule.
+     *
+     * @param policy new active policy, which is not ADAPTIVE
+     */
+    private void switchPolicy(BalancePolicy policy) {
+        // A relaxed tree breaks the WAVL rules, and a WAVL tree may have 2-2 nodes, which AVL forbids
+        boolean rebuildNeeded = (activePolicy == BalancePolicy.RELAXED && policy != BalancePolicy.RELAXED)
+                || (policy == BalancePolicy.AVL && activePolicy != BalancePolicy.AVL);
+        activePolicy = policy;
+        if (rebuildNeeded) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Relinks all nodes into a perfectly balanced tree, whose ranks are the node heights, leaving out tombstones.
+     * Sibling subtrees differ in size by at most one node, so their heights differ by at most 1,
+     * which leaves every node 1-1 or 1-2 and satisfies both the WAVL and the AVL rules.
+     */
+    private void rebuild() {
+        deletesSinceRebuild = 0;
+        tombstoneCount = 0;
+        if (root == null) {
+            return;
+        }
+
+        WAVLNode[] nodes = new WAVLNode[size];
+        long[] itemHashes = hashed ? new long[size] : null; // own items of every node, kept across relinking
+        int index = 0;
+        for (WAVLNode node = min; node != null; node = nextLiveNode(node)) {
+            nodes[index] = node;
+            if (hashed) {
+                itemHashes[index] = hashOf(node) - hashOf(node.left) - hashOf(node.right);
+            }
+            index++;
+        }
+        root = buildBalanced(nodes, itemHashes, 0, size - 1, null);
+    }
+
+    /**
+     * Recursively links a sorted range of nodes into a balanced subtree.
+     *
+     * @param nodes      all nodes of the tree in key order
+     * @param itemHashes hash of every node's own items, or null if the tree isn't hashed
+     * @param from       index of the subtree's first node
+     * @param to         index of the subtree's last node, smaller than from if the subtree is empty
+     * @param parent     parent of the subtree, or null for the root
+     * @return root of the subtree, or externalLeaf if it is empty
+     */
+    private WAVLNode buildBalanced(WAVLNode[] nodes, long[] itemHashes, int from, int to, WAVLNode parent) {
+        if (from > to) {
+            return externalLeaf;
+        }
+
+        int middle = (from + to) >>> 1;
+        WAVLNode node = nodes[middle];
+        node.parent = parent;
+        node.left = buildBalanced(nodes, itemHashes, from, middle - 1, node);
+        node.right = buildBalanced(nodes, itemHashes, middle + 1, to, node);
+        node.rank = 1 + Math.max(node.left.rank, node.right.rank);
+        if (itemHashes != null) {
+            ((HashedNode) node).hash = hashOf(node.left) + hashOf(node.right) + itemHashes[middle];
+        }
+        return node;
+    }
+
+    /**
+     * Finds the node following a given node in key order.
+     *
+     * @param node node in the tree
+     * @return node with the smallest key larger than node's key, or null if node is the maximum
+     */
+    private WAVLNode nextNode(WAVLNode node) {
+        if (node.right != externalLeaf) {
+            return findSuccessor(node);
+        }
+        while (node.parent != null && !node.isLeftChild()) {
+            node = node.parent;
+        }
+        return node.parent;
+    }
+
+    /**
+     * Searches for a key through the search cache, caching the key's node on a miss.
+     * <p>
+     * Precondition: tree is not empty and the search cache is enabled
+     *
+     * @param k key of the node to look for
+     * @return node with key k, or the last node that was reached if k was not found
+     */
+    private WAVLNode searchCached(int k) {
+        int slot = cacheSlot(k);
+        WAVLNode node = cacheNodes[slot];
+        if (node != null && cacheKeys[slot] == k) {
+            cacheHits++;
+            return node;
+        }
+
+        cacheMisses++;
+        node = searchRecursive(root, k);
+        if (node.key == k && !node.isTombstone()) {
+            cacheKeys[slot] = k;
+            cacheNodes[slot] = node;
+        }
+        return node;
+    }
+
+    /**
+     * Clears the search cache slot of a key whose item is deleted or moves to another node.
+     *
+     * @param k key of the item
+     */
+    private void uncacheKey(int k) {
+        if (cacheNodes != null) {
+            int slot = cacheSlot(k);
+            if (cacheKeys[slot] == k) {
+                cacheNodes[slot] = null;
+            }
+        }
+    }
+
+    /**
+     * Maps a key to its search cache slot, mixing the key's bits (Fibonacci hashing) so that nearby
+     * keys use different slots.
+     *
+     * @param k key to map
+     * @return index of the key's slot
+     */
+    private int cacheSlot(int k) {
+        int h = k * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (cacheNodes.length - 1);
+    }
+
+    /**
+     * Checks whether a node's time to live has passed.
+     *
+     * @param node node in the tree
+     * @return true iff the node has a deadline which is not later than the current time
+     */
+    private boolean isExpired(WAVLNode node) {
+        if (expiryQueue.isEmpty()) {
+            return false;
+        }
+        long deadline = expiryQueue.deadline(node.key);
+        return deadline != WAVLExpiryQueue.NO_DEADLINE && deadline <= clock.millis();
+    }
+
+    /**
+     * Deletes the items whose deadline has passed, in deadline order.
+     *
+     * @param maxItems most items to delete, which bounds the work of a single call
+     * @return number of items deleted
+     */
+    private int expireDue(int maxItems) {
+        if (expiryQueue.isEmpty()) {
+            return 0;
+        }
+        long now = clock.millis();
+        int expiredCount = 0;
+        while (expiredCount < maxItems && expiryQueue.hasDue(now)) {
+            deleteKey(expiryQueue.pollDue()); // clears the key's deadline
+            expiredCount++;
+        }
+        return expiredCount;
+    }
+
+    /**
+     * Finds the node preceding a given node in key order.
+     *
+     * @param node node in the tree
+     * @return node with the largest key smaller than node's key, or null if node is the minimum
+     */
+    private WAVLNode previousNode(WAVLNode node) {
+        if (node.left != externalLeaf) {
+            return findPredecessor(node);
+        }
+        while (node.parent != null && node.isLeftChild()) {
+            node = node.parent;
+        }
+        return node.parent;
+    }
+
+    /**
+     * Finds the first node following a given node in key order which is not a tombstone.
+     *
+     * @param node node in the tree
+     * @return next node holding items, or null if there is none
+     */
+    private WAVLNode nextLiveNode(WAVLNode node) {
+        do {
+            node = nextNode(node);
+        } while (node != null && node.isTombstone());
+        return node;
+    }
+
+    /**
+     * Finds the last node preceding a given node in key order which is not a tombstone.
+     *
+     * @param node node in the tree
+     * @return previous node holding items, or null if there is none
+     */
+    private WAVLNode previousLiveNode(WAVLNode node) {
+        do {
+            node = previousNode(node);
+        } while (node != null && node.isTombstone());
+        return node;
+    }
+
+    /**
+     * Finds the first node holding items which did not expire, starting at a given node.
+     *
+     * @param node node holding items, or null
+     * @return node itself if it did not expire, else the next live node which did not expire, or null if there is none
+     */
+    private WAVLNode nextUnexpiredNode(WAVLNode node) {
+        while (node != null && isExpired(node)) {
+            node = nextLiveNode(node);
+        }
+        return node;
+    }
+
+    /**
+     * Finds the last node holding items which did not expire, starting at a given node.
+     *
+     * @param node node holding items, or null
+     * @return node itself if it did not expire, else the previous live node which did not expire,
+     * or null if there is none
+     */
+    private WAVLNode previousUnexpiredNode(WAVLNode node) {
+        while (node != null && isExpired(node)) {
+            node = previousLiveNode(node);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the time left before an item expires.
+     *
+     * @param k key of an item in the tree
+     * @return milliseconds until the item's deadline, at least 1, or 0 if it has no time to live
+     */
+    private long remainingTtl(int k) {
+        long deadline = expiryQueue.deadline(k);
+        if (deadline == WAVLExpiryQueue.NO_DEADLINE) {
+            return 0;
+        }
+        return Math.max(1, deadline - clock.millis());
+    }
+
+    /**
+     * Deletes the items of a node but leaves the node in the tree as a tombstone.
+     * Updates the tree minimum and maximum, which always point to nodes holding items.
+     *
+     * @param node node holding items
+     */
+    private void markTombstone(WAVLNode node) {
+        uncacheKey(node.key);
+        if (node == min) {
+            min = nextLiveNode(node);
+        }
+        if (node == max) {
+            max = previousLiveNode(node);
+        }
+        size--;
+        valueCount -= node.valueCount();
+        expiryQueue.removeDeadline(node.key);
+        publishDelete(node);
+        if (hashed) {
+            addHashToPath(node, null, -(hashOf(node) - hashOf(node.left) - hashOf(node.right)));
+        }
+
+        node.info = TOMBSTONE; // lets the deleted values be collected
+        tombstoneCount++;
+    }
+
+    /**
+     * Removes a tombstone from the tree, rebalancing as the active policy does for a deletion.
+     *
+     * @param node tombstone in the tree
+     */
+    private void removeTombstone(WAVLNode node) {
+        tombstoneCount--;
+        if (activePolicy == BalancePolicy.RELAXED) {
+            unlinkNode(node);
+            deletesSinceRebuild++;
+        } else {
+            removeNode(node);
+        }
+    }
+
+    /**
+     * Reports the differences with another hashed tree in a key range, skipping the range if its hashes are
+     * equal, and otherwise walking it if it holds few nodes or splitting it at the middle key.
+     *
+     * @param other   tree to compare with
+     * @param low     smallest key of the range
+     * @param high    largest key of the range
+     * @param visitor receives the differences in ascending key order
+     */
+    private void diffHashed(WAVLTree other, int low, int high, DiffVisitor visitor) {
+        if (rangeHash(low, high) == other.rangeHash(low, high)) {
+            return;
+        }
+        WAVLNode node = firstVisibleNode(low, high);
+        WAVLNode otherNode = other.firstVisibleNode(low, high);
+        if (low == high || (fewNodesInRange(node, high) && other.fewNodesInRange(otherNode, high))) {
+            diffWalk(other, node, otherNode, high, visitor);
+            return;
+        }
+        int middle = (int) (((long) low + high) >> 1);
+        diffHashed(other, low, middle, visitor);
+        diffHashed(other, middle + 1, high, visitor);
+    }
+
+    /**
+     * Reports the differences with another tree by walking both trees in order up to a key.
+     *
+     * @param other     tree to compare with
+     * @param node      first node of this tree to compare, from firstVisibleNode(), or null
+     * @param otherNode first node of other to compare, from other.firstVisibleNode(), or null
+     * @param high      largest key to compare
+     * @param visitor   receives the differences in ascending key order
+     */
+    private void diffWalk(WAVLTree other, WAVLNode node, WAVLNode otherNode, int high, DiffVisitor visitor) {
+        while (node != null || otherNode != null) {
+            if (otherNode == null || (node != null && node.key < otherNode.key)) {
+                visitor.deleted(node.key, node.info());
+                node = nextVisibleNode(node, high);
+            } else if (node == null || node.key > otherNode.key) {
+                visitor.inserted(otherNode.key, otherNode.info());
+                otherNode = other.nextVisibleNode(otherNode, high);
+            } else {
+                if (!equalInfo(node.info(), otherNode.info())) {
+                    visitor.changed(node.key, node.info(), otherNode.info());
+                }
+                node = nextVisibleNode(node, high);
+                otherNode = other.nextVisibleNode(otherNode, high);
+            }
+        }
+    }
+
+    /**
+     * Finds the first node in a key range which queries see, skipping tombstones and expired items.
+     *
+     * @param low  smallest key of the range
+     * @param high largest key of the range
+     * @return first node holding unexpired items in the range, or null if there is none
+     */
+    private WAVLNode firstVisibleNode(int low, int high) {
+        WAVLNode node = firstNodeAtLeast(low);
+        if (node != null && node.isTombstone()) {
+            node = nextLiveNode(node);
+        }
+        node = nextUnexpiredNode(node);
+        return (node != null && node.key <= high) ? node : null;
     }
 
     /**
-     * Rotates subtree around the edge connecting node1 and node2.
-     * Assumes node1 is node2's parent.
+     * Finds the node following a given node which queries see, skipping tombstones and expired items.
      *
-     * @param node1 parent node to rotate around
-     * @param node2 child node that would become parent
+     * @param node node in the tree
+     * @param high largest key of the range
+     * @return next node holding unexpired items up to high, or null if there is none
      */
-    private void rotate(WAVLNode node1, WAVLNode node2) {
-        WAVLNode node1Parent = node1.parent; // temporarily save so it's not lost on rotation
-
-        if (node2.isLeftChild()) {
-            rotateRight(node1, node2);
-        } else {
-            rotateLeft(node1, node2);
-        }
+    private WAVLNode nextVisibleNode(WAVLNode node, int high) {
+        node = nextUnexpiredNode(nextLiveNode(node));
+        return (node != null && node.key <= high) ? node : null;
+    }
 
-        // Fix parent pointers
-        node1.parent = node2;
-        if (node2 != externalLeaf) {
-            node2.parent = node1Parent;
+    /**
+     * Checks whether a key range is small enough for diff to walk rather than split, in O(DIFF_WALK_NODES) time.
+     *
+     * @param first first node of the range, or null
+     * @param high  largest key of the range
+     * @return true iff the range holds at most DIFF_WALK_NODES nodes
+     */
+    private boolean fewNodesInRange(WAVLNode first, int high) {
+        WAVLNode node = first;
+        for (int j = 0; j < DIFF_WALK_NODES; j++) {
+            if (node == null || node.key > high) {
+                return true;
+            }
+            node = nextNode(node);
         }
+        return node == null || node.key > high;
+    }
 
-        // If not at the tree's root, fix node1's child pointer
-        if (node1Parent != null) {
-            if (node1Parent.left == node1) {
-                node1Parent.left = node2;
+    /**
+     * Finds the node with the smallest key which is not smaller than a given key.
+     *
+     * @param k lower bound of the key
+     * @return node with the smallest key >= k, or null if there is none
+     */
+    private WAVLNode firstNodeAtLeast(int k) {
+        WAVLNode result = null;
+        WAVLNode node = (root != null) ? root : externalLeaf;
+        while (node != externalLeaf) {
+            if (node.key >= k) {
+                result = node;
+                node = node.left;
             } else {
-                node1Parent.right = node2;
+                node = node.right;
             }
         }
+        return result;
+    }
 
-        // If node1 was the tree root, update root pointer
-        if (root == node1) {
-            root = node2;
+    /**
+     * Counts the info values which queries see from a given node up to a key.
+     *
+     * @param first first node to count, from firstVisibleNode(), or null
+     * @param high  largest key to count
+     * @return number of unexpired info values with keys between first's key and high
+     */
+    private int countValuesInRange(WAVLNode first, int high) {
+        int count = 0;
+        for (WAVLNode node = first; node != null; node = nextVisibleNode(node, high)) {
+            count += node.valueCount();
         }
+        return count;
     }
 
     /**
-     * Performs a left-rotation on the subtree around the edge connecting node1 and node2.
+     * Replaces the info of a node, publishing the change as a deletion followed by an insertion.
+     * <p>
+     * Precondition: the tree is not a multimap
      *
-     * @param node1 parent node to rotate around
-     * @param node2 child node that would become parent
+     * @param node node in the tree
+     * @param i    new info
      */
-    private void rotateLeft(WAVLNode node1, WAVLNode node2) {
-        WAVLNode node2LeftChild = node2.left; // temporarily save so it's not lost on rotation
-
-        // Reassign pointers
-        node2.left = node1;
-        node1.right = node2LeftChild;
-        node2LeftChild.parent = node1;
+    private void replaceInfo(WAVLNode node, String i) {
+        if (changeFeed != null) {
+            changeFeed.publish(WAVLChangeFeed.ChangeType.DELETE, node.key, (String) node.info);
+            changeFeed.publish(WAVLChangeFeed.ChangeType.INSERT, node.key, i);
+        }
+        if (hashed) {
+            addHashToPath(node, null, itemHash(node.key, i) - itemHash(node.key, (String) node.info));
+        }
+        node.info = i;
     }
 
     /**
-     * Performs a right-rotation on the subtree around the edge connecting node1 and node2.
+     * Compares two info values, either of which may be null.
      *
-     * @param node1 parent node to rotate around
-     * @param node2 child node that would become parent
+     * @param info1 first info value
+     * @param info2 second info value
+     * @return true iff both are null or they are equal
      */
-    private void rotateRight(WAVLNode node1, WAVLNode node2) {
-        WAVLNode node2RightChild = node2.right; // temporarily save so it's not lost on rotation
+    private static boolean equalInfo(String info1, String info2) {
+        return (info1 == null) ? info2 == null : info1.equals(info2);
+    }
 
-        // Reassign pointers
-        node2.right = node1;
-        node1.left = node2RightChild;
-        node2RightChild.parent = node1;
+    /**
+     * Makes sure the tree keeps subtree hashes.
+     */
+    private void checkHashed() {
+        if (!hashed) {
+            throw new IllegalStateException("tree was created without hashing");
+        }
     }
 
     /**
-     * Performs a double rotation, first on node2 and node3, and then on node1 and node2.
+     * Computes the hash of the items with keys smaller than a bound, using the subtree hashes.
      *
-     * @param node1 highest node
-     * @param node2 middle node
-     * @param node3 lowest node
+     * @param bound exclusive upper bound of the keys, as a long so that it can exceed Integer.MAX_VALUE
+     * @return sum of the item hashes of those items
      */
-    private void doubleRotate(WAVLNode node1, WAVLNode node2, WAVLNode node3) {
-        rotate(node2, node3);
-        rotate(node1, node3);
+    private long hashBelow(long bound) {
+        if (root == null) {
+            return 0;
+        }
+        long sum = 0;
+        WAVLNode node = root;
+        while (node != externalLeaf) {
+            if (node.key < bound) {
+                sum += hashOf(node) - hashOf(node.right); // left subtree and node's own items
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return sum;
     }
 
     /**
-     * perform an info and key switch between the given node and his predecessor.
-     * returns the predecessor after the switch.
+     * Adds a hash delta to a node and its ancestors.
+     * <p>
+     * Subtree hashes are sums of item hashes, so adding or removing an item only adds to the hashes on its path.
      *
-     * @param node node we want to switch with his predecessor
-     * @return the predecessor node with the given node's info and key
+     * @param node  lowest node to update
+     * @param stop  ancestor at which to stop without updating it, or null to update up to the root
+     * @param delta value to add to every hash
      */
-    private WAVLNode switchWithPredecessor(WAVLNode node) {
-        WAVLNode predecessor = findPredecessor(node);
-        String tempInfo = node.info;
-        int tempKey = node.key;
-        node.info = predecessor.info;
-        node.key = predecessor.key;
-        predecessor.info = tempInfo;
-        predecessor.key = tempKey;
-        return predecessor;
+    private void addHashToPath(WAVLNode node, WAVLNode stop, long delta) {
+        for (; node != stop; node = node.parent) {
+            ((HashedNode) node).hash += delta;
+        }
     }
 
     /**
-     * Find the predecessor of the given node.
+     * Returns the subtree hash of a node.
+     * <p>
+     * Precondition: the tree is hashed
      *
-     * @param node the node whose predecessor we are looking for
-     * @return node's predecessor
+     * @param node node in the tree, or the external leaf
+     * @return sum of the item hashes in node's subtree
      */
-    private WAVLNode findPredecessor(WAVLNode node) {
-        WAVLNode predecessor = node.left;
-        while (predecessor.right != externalLeaf) {
-            predecessor = predecessor.right;
+    private static long hashOf(WAVLNode node) {
+        return ((HashedNode) node).hash;
+    }
+
+    /**
+     * Creates a leaf node to insert into the tree, with room for a subtree hash if the tree is hashed.
+     *
+     * @param parent parent of the new node, or null for a new root
+     * @param k      key of the new node
+     * @param i      info of the new node
+     * @return the new node
+     */
+    private WAVLNode newNode(WAVLNode parent, int k, String i) {
+        if (hashed) {
+            return new HashedNode(parent, externalLeaf, externalLeaf, k, i);
         }
-        return predecessor;
+        return new WAVLNode(parent, externalLeaf, externalLeaf, k, i);
     }
 
     /**
-     * Find the successor of the given node.
+     * Hashes a single item. The hash of a subtree is the sum of the hashes of its items,
+     * which does not depend on the subtree's shape.
      *
-     * @param node the node whose successor we are looking for
-     * @return node's successor
+     * @param k    key of the item
+     * @param info info of the item, may be null
+     * @return 64-bit hash of the item
      */
-    private WAVLNode findSuccessor(WAVLNode node) {
-        WAVLNode successor = node.right;
-        while (successor.left != externalLeaf) {
-            successor = successor.left;
+    private static long itemHash(int k, String info) {
+        long infoHash = 0x6A09E667F3BCC909L; // hash of null info
+        if (info != null) {
+            infoHash = 0xCBF29CE484222325L; // FNV-1a over the UTF-16 chars
+            for (int j = 0; j < info.length(); j++) {
+                infoHash = (infoHash ^ info.charAt(j)) * 0x100000001B3L;
+            }
         }
-        return successor;
+        return mixHash(mixHash(k) + infoHash);
+    }
+
+    /**
+     * Scrambles the bits of a value (SplitMix64 finalizer), so sums of hashes don't cancel out.
+     *
+     * @param z value to scramble
+     * @return scrambled value
+     */
+    private static long mixHash(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 
     /**
-     * Updates tree minimum and maximum pointers if needed, and increases tree size by 1.
+     * Updates tree minimum and maximum pointers if needed, increases tree size by 1
+     * and publishes the insertion.
      *
-     * @param newNode the newly inserted node
+     * @param newNode the newly inserted node, or a tombstone which was reused
      */
     private void updateClassMembersInsert(WAVLNode newNode) {
-        if (newNode == root) {
-            // Update both tree minimum and maximum to the new root
-            min = root;
-            max = root;
+        if (size == 0) {
+            // The new node is the only one holding items, though a reused tombstone may not be the root
+            min = newNode;
+            max = newNode;
         } else {
             // Check if tree maximum or minimum need to be updated
             if (newNode.key < min.key) {
@@ -608,40 +2313,143 @@ public class WAVLTree {
 
         // Update tree size
         size++;
+        valueCount++;
+
+        if (hashed) {
+            addHashToPath(newNode, null, itemHash(newNode.key, newNode.info()));
+        }
+
+        if (changeFeed != null) {
+            changeFeed.publish(WAVLChangeFeed.ChangeType.INSERT, newNode.key, newNode.info());
+        }
     }
 
     /**
-     * Updates tree minimum and maximum pointers if needed, and decreases tree size by 1.
+     * Updates tree minimum and maximum pointers if needed, decreases tree size by 1
+     * and publishes the deletion.
      *
      * @param node node to be deleted
      */
     private void updateClassMembersDelete(WAVLNode node) {
         // Check if tree maximum or minimum need to be updated
         if (node == min) {
-            if (min == root) {
-                min = null;
+            if (min.right != externalLeaf) {
+                min = findSuccessor(min);
             } else {
-                if (min.right == externalLeaf) {
-                    min = min.parent;
-                } else {
-                    min = findSuccessor(min);
-                }
+                min = min.parent; // null if min was the root
             }
         }
         if (node == max) {
-            if (max == root) {
-                max = null;
+            if (max.left != externalLeaf) {
+                max = findPredecessor(max);
             } else {
-                if (max.left == externalLeaf) {
-                    max = max.parent;
-                } else {
-                    max = findPredecessor(max);
-                }
+                max = max.parent; // null if max was the root
             }
         }
 
         // Update tree size
         size--;
+        valueCount -= node.valueCount();
+        expiryQueue.removeDeadline(node.key);
+        uncacheKey(node.key);
+
+        publishDelete(node);
+    }
+
+    /**
+     * Publishes the deletion of every info value of a node.
+     *
+     * @param node node whose items are deleted
+     */
+    private void publishDelete(WAVLNode node) {
+        if (changeFeed != null) {
+            for (int j = 0; j < node.valueCount(); j++) {
+                changeFeed.publish(WAVLChangeFeed.ChangeType.DELETE, node.key, node.infoAt(j));
+            }
+        }
+    }
+
+    /**
+     * Recursively computes the height of a sub-tree.
+     *
+     * @param node root of current sub-tree
+     * @return number of edges on the longest route from node to a leaf
+     */
+    private int heightRecursive(WAVLNode node) {
+        int leftHeight = (node.left != externalLeaf) ? heightRecursive(node.left) : -1;
+        int rightHeight = (node.right != externalLeaf) ? heightRecursive(node.right) : -1;
+        return 1 + Math.max(leftHeight, rightHeight);
+    }
+
+    /**
+     * Recursively checks the invariants of a sub-tree.
+     *
+     * @param node     root of current sub-tree
+     * @param lowerKey every key in the sub-tree must be greater than this bound
+     * @param upperKey every key in the sub-tree must be smaller than this bound
+     * @param counts   number of nodes, values, tombstones and nodes with a deadline found so far,
+     *                 updated with the sub-tree's
+     */
+    private void validateRecursive(WAVLNode node, long lowerKey, long upperKey, long[] counts) {
+        if (node.key <= lowerKey || node.key >= upperKey) {
+            throw new IllegalStateException("Key " + node.key + " is out of BST order, expected between "
+                    + lowerKey + " and " + upperKey);
+        }
+        int leftDiff = node.getLeftChildRankDiff();
+        int rightDiff = node.getRightChildRankDiff();
+        boolean relaxed = (activePolicy == BalancePolicy.RELAXED); // only positive rank differences are required
+        if (leftDiff < 1 || rightDiff < 1 || (!relaxed && (leftDiff > 2 || rightDiff > 2))) {
+            throw new IllegalStateException("Node " + node.key + " is a " + leftDiff + "-" + rightDiff + " node");
+        }
+        if (!relaxed && node.isALeaf() && leftDiff == 2 && rightDiff == 2) {
+            throw new IllegalStateException("Node " + node.key + " is a 2-2 leaf");
+        }
+        if (activePolicy == BalancePolicy.AVL && leftDiff == 2 && rightDiff == 2) {
+            throw new IllegalStateException("Node " + node.key + " is a 2-2 node in an AVL tree");
+        }
+        if (node.info instanceof Bucket) {
+            if (!multimap) {
+                throw new IllegalStateException("Node " + node.key + " has several values but the tree is not a multimap");
+            }
+            if (((Bucket) node.info).size < 2) {
+                throw new IllegalStateException("Node " + node.key + " keeps a bucket for a single value");
+            }
+        }
+        if (node.isTombstone()) {
+            if (expiryQueue.deadline(node.key) != WAVLExpiryQueue.NO_DEADLINE) {
+                throw new IllegalStateException("Tombstone " + node.key + " still has a deadline");
+            }
+            counts[2]++;
+        } else {
+            counts[0]++;
+        }
+        counts[1] += node.valueCount();
+        if (!node.isTombstone() && expiryQueue.deadline(node.key) != WAVLExpiryQueue.NO_DEADLINE) {
+            counts[3]++;
+        }
+
+        if (node.left != externalLeaf) {
+            if (node.left.parent != node) {
+                throw new IllegalStateException("Left child of " + node.key + " has a wrong parent pointer");
+            }
+            validateRecursive(node.left, lowerKey, node.key, counts);
+        }
+        if (node.right != externalLeaf) {
+            if (node.right.parent != node) {
+                throw new IllegalStateException("Right child of " + node.key + " has a wrong parent pointer");
+            }
+            validateRecursive(node.right, node.key, upperKey, counts);
+        }
+
+        if (hashed) {
+            long expectedHash = hashOf(node.left) + hashOf(node.right);
+            for (int j = 0; j < node.valueCount(); j++) {
+                expectedHash += itemHash(node.key, node.infoAt(j));
+            }
+            if (hashOf(node) != expectedHash) {
+                throw new IllegalStateException("Node " + node.key + " has a wrong subtree hash");
+            }
+        }
     }
 
     /**
@@ -659,16 +2467,19 @@ public class WAVLTree {
             leftSubTreeSize = keysToArrayRecursive(arr, keysInserted, node.left);
         }
 
-        // Insert current node to the array
-        arr[keysInserted + leftSubTreeSize] = node.key;
+        // Insert current node to the array, once for each of its values
+        int nodeValueCount = node.valueCount();
+        for (int j = 0; j < nodeValueCount; j++) {
+            arr[keysInserted + leftSubTreeSize + j] = node.key;
+        }
 
         // Insert right sub-tree to the array in order
         int rightSubTreeSize = 0;
         if (node.right != externalLeaf) {
-            rightSubTreeSize = keysToArrayRecursive(arr, keysInserted + leftSubTreeSize + 1, node.right);
+            rightSubTreeSize = keysToArrayRecursive(arr, keysInserted + leftSubTreeSize + nodeValueCount, node.right);
         }
 
-        return leftSubTreeSize + 1 + rightSubTreeSize;
+        return leftSubTreeSize + nodeValueCount + rightSubTreeSize;
     }
 
     /**
@@ -686,16 +2497,16 @@ public class WAVLTree {
             leftSubTreeSize = infoToArrayRecursive(arr, stringsInserted, node.left);
         }
 
-        // Insert current node to the array
-        arr[stringsInserted + leftSubTreeSize] = node.info;
+        // Insert current node's values to the array
+        int nodeValueCount = node.copyInfo(arr, stringsInserted + leftSubTreeSize);
 
         // Insert right sub-tree to the array in order
         int rightSubTreeSize = 0;
         if (node.right != externalLeaf) {
-            rightSubTreeSize = infoToArrayRecursive(arr, stringsInserted + leftSubTreeSize + 1, node.right);
+            rightSubTreeSize = infoToArrayRecursive(arr, stringsInserted + leftSubTreeSize + nodeValueCount, node.right);
         }
 
-        return leftSubTreeSize + 1 + rightSubTreeSize;
+        return leftSubTreeSize + nodeValueCount + rightSubTreeSize;
     }
 
     /**
@@ -707,7 +2518,7 @@ public class WAVLTree {
         private WAVLNode left;
         private WAVLNode right;
         private int key;
-        private String info;
+        private Object info; // the info, or a Bucket once a multimap key holds several values
         private int rank;
 
         /**
@@ -740,6 +2551,122 @@ public class WAVLTree {
             this.rank = -1;
         }
 
+        /**
+         * Returns the number of info values this node holds.
+         *
+         * @return number of values in the bucket, 1 without a bucket, or 0 for a tombstone
+         */
+        private int valueCount() {
+            if (isTombstone()) {
+                return 0;
+            }
+            return (info instanceof Bucket) ? ((Bucket) info).size : 1;
+        }
+
+        /**
+         * Returns the first info value of this node.
+         *
+         * @return the value which was inserted first, or null for a tombstone
+         */
+        private String info() {
+            if (isTombstone()) {
+                return null;
+            }
+            return (info instanceof Bucket) ? ((Bucket) info).values[0] : (String) info;
+        }
+
+        /**
+         * Returns whether this node is a tombstone, whose items were lazily deleted.
+         *
+         * @return true iff the node holds no items
+         */
+        private boolean isTombstone() {
+            return info == TOMBSTONE;
+        }
+
+        /**
+         * Returns an info value of this node.
+         *
+         * @param index index of the value in insertion order, smaller than valueCount()
+         * @return the value
+         */
+        private String infoAt(int index) {
+            return (info instanceof Bucket) ? ((Bucket) info).values[index] : (String) info;
+        }
+
+        /**
+         * Appends an info value to this node, moving the info into a bucket or growing the bucket if needed.
+         *
+         * @param value info value to append
+         */
+        private void appendInfo(String value) {
+            if (!(info instanceof Bucket)) {
+                Bucket bucket = new Bucket();
+                bucket.values[bucket.size++] = (String) info;
+                info = bucket;
+            }
+            Bucket bucket = (Bucket) info;
+            if (bucket.size == bucket.values.length) {
+                String[] newValues = new String[bucket.size * 2];
+                System.arraycopy(bucket.values, 0, newValues, 0, bucket.size);
+                bucket.values = newValues;
+            }
+            bucket.values[bucket.size++] = value;
+        }
+
+        /**
+         * Finds an info value of this node.
+         *
+         * @param value info value to look for, may be null
+         * @return index of the first equal value in insertion order, or -1 if it was not found
+         */
+        private int indexOfInfo(String value) {
+            for (int j = 0; j < valueCount(); j++) {
+                String candidate = infoAt(j);
+                if (value == null ? candidate == null : value.equals(candidate)) {
+                    return j;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Removes an info value of this node, keeping the remaining values in insertion order.
+         * A single remaining value takes the bucket's place.
+         * <p>
+         * Precondition: the node holds more than one value
+         *
+         * @param index index of the value to remove in insertion order
+         */
+        private void removeInfo(int index) {
+            Bucket bucket = (Bucket) info;
+            System.arraycopy(bucket.values, index + 1, bucket.values, index, bucket.size - index - 1);
+            bucket.values[--bucket.size] = null;
+            if (bucket.size == 1) {
+                info = bucket.values[0];
+            }
+        }
+
+        /**
+         * Copies all info values of this node into an array in insertion order.
+         *
+         * @param arr    array to which the values are copied
+         * @param offset index in arr of the first value
+         * @return number of values copied
+         */
+        private int copyInfo(String[] arr, int offset) {
+            if (isTombstone()) {
+                return 0;
+            }
+            if (!(info instanceof Bucket)) {
+                arr[offset] = (String) info;
+                return 1;
+            }
+            Bucket bucket = (Bucket) info;
+            System.arraycopy(bucket.values, 0, arr, offset, bucket.size);
+            return bucket.size;
+        }
+
         /**
          * Increases current node's rank by 1.
          */
@@ -797,6 +2724,16 @@ public class WAVLTree {
             return this.rank - right.rank;
         }
 
+        /**
+         * Returns the child of this node which is not the given child.
+         *
+         * @param child one of this node's children
+         * @return the sibling of child
+         */
+        private WAVLNode getOtherChild(WAVLNode child) {
+            return (left == child) ? right : left;
+        }
+
         /**
          * Checks whether this node has no children that are not an external leaf.
          *
@@ -807,6 +2744,15 @@ public class WAVLTree {
                     && left == externalLeaf;
         }
 
+        /**
+         * Checks whether both children of this node have a rank difference of 2.
+         *
+         * @return true iff this is a 2-2 node
+         */
+        private boolean isTwoTwo() {
+            return getLeftChildRankDiff() == 2 && getRightChildRankDiff() == 2;
+        }
+
         /**
          * Checks whether this node is the left child of its parent.
          *
@@ -825,6 +2771,43 @@ public class WAVLTree {
             return left != externalLeaf && right != externalLeaf;
         }
     }
+
+    /**
+     * All info values of a multimap key which holds several values, in insertion order.
+     */
+    private static final class Bucket {
+
+        private String[] values = new String[4];
+        private int size; // number of values used in values
+    }
+
+    /**
+     * A tree-node of a hashed tree, which also keeps the hash of its subtree
+     */
+    private class HashedNode extends WAVLNode {
+
+        private long hash; // sum of the item hashes in this node's subtree
+
+        /**
+         * Constructor to create a tree node
+         *
+         * @param parent parent of this node
+         * @param right  right child of this node
+         * @param left   left child of this node
+         * @param key    key of this node
+         * @param info   info of this node
+         */
+        private HashedNode(WAVLNode parent, WAVLNode right, WAVLNode left, int key, String info) {
+            super(parent, right, left, key, info);
+        }
+
+        /**
+         * External leaf constructor
+         */
+        private HashedNode() {
+            super();
+        }
+    }
 }
   
 	
\ No newline at end of file
@@ -0,0 +1,182 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/**
+ * Load generator for WAVLTreeServer.
+ * <p>
+ * Opens several connections, each sending a random mix of requests in pipelined groups, and reports
+ * the throughput and the round trip time of a group. Without an address, it starts a server on a free
+ * loopback port in the same process.
+ * <p>
+ * Usage: java WAVLTreeLoadGenerator [address | local] [connections] [requests per connection]
+ * [pipeline depth] [key range]
+ */
+public class WAVLTreeLoadGenerator {
+    private static final long SEED = 42;
+
+    private final SocketAddress address;
+    private final int requestsPerConnection;
+    private final int pipelineDepth;
+    private final int keyRange;
+
+    public static void main(String args[]) throws Exception {
+        String address = (args.length > 0) ? args[0] : "local";
+        int connections = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int requestsPerConnection = (args.length > 2) ? Integer.parseInt(args[2]) : 1000000;
+        int pipelineDepth = (args.length > 3) ? Integer.parseInt(args[3]) : 64;
+        int keyRange = (args.length > 4) ? Integer.parseInt(args[4]) : 1 << 20;
+
+        WAVLTreeServer server = null;
+        if (address.equals("local")) {
+            server = new WAVLTreeServer(new WAVLTree(), WAVLTreeServer.parseAddress("0"));
+        }
+        SocketAddress serverAddress = (server != null) ? server.address() : WAVLTreeServer.parseAddress(address);
+        WAVLTreeLoadGenerator generator = new WAVLTreeLoadGenerator(serverAddress, requestsPerConnection,
+                pipelineDepth, keyRange);
+        try {
+            generator.run(connections);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private WAVLTreeLoadGenerator(SocketAddress address, int requestsPerConnection, int pipelineDepth,
+                                  int keyRange) {
+        this.address = address;
+        this.requestsPerConnection = requestsPerConnection;
+        this.pipelineDepth = pipelineDepth;
+        this.keyRange = keyRange;
+    }
+
+    private void run(int connections) throws Exception {
+        System.out.println("address: " + address + ", connections: " + connections + ", requests/connection: "
+                + requestsPerConnection + ", pipeline depth: " + pipelineDepth);
+        Thread[] threads = new Thread[connections];
+        final long[] roundTripNanos = new long[connections];
+        final IOException[] failures = new IOException[connections];
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            final int connection = c;
+            threads[c] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        roundTripNanos[connection] = runConnection(new Random(SEED + connection));
+                    } catch (IOException e) {
+                        failures[connection] = e;
+                    }
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        for (IOException failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        long totalRequests = (long) connections * requestsPerConnection;
+        long totalRoundTripNanos = 0;
+        for (long nanos : roundTripNanos) {
+            totalRoundTripNanos += nanos;
+        }
+        long groups = totalRequests / pipelineDepth;
+        System.out.println(String.format("  %.0f requests/s", totalRequests / (elapsedNanos / 1e9)));
+        System.out.println(String.format("  %.1f us per pipelined group of %d", totalRoundTripNanos / 1e3 / groups,
+                pipelineDepth));
+    }
+
+    /**
+     * Sends a connection's requests in groups of pipelineDepth, reading a group's responses before
+     * sending the next one.
+     *
+     * @param random source of keys and operations
+     * @return total nanoseconds spent waiting for groups to be answered
+     */
+    private long runConnection(Random random) throws IOException {
+        byte[] opcodes = new byte[pipelineDepth];
+        long roundTripNanos = 0;
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), WAVLTreeServer.BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), WAVLTreeServer.BUFFER_SIZE));
+            for (int sent = 0; sent + pipelineDepth <= requestsPerConnection; sent += pipelineDepth) {
+                long start = System.nanoTime();
+                for (int j = 0; j < pipelineDepth; j++) {
+                    opcodes[j] = writeRandomRequest(out, random);
+                }
+                out.flush();
+                for (int j = 0; j < pipelineDepth; j++) {
+                    readResponse(in, opcodes[j]);
+                }
+                roundTripNanos += System.nanoTime() - start;
+            }
+        }
+        return roundTripNanos;
+    }
+
+    /**
+     * Writes a request drawn from a read-mostly mix: 60% search, 20% insert, 18% delete, 1% range and
+     * 1% min or max.
+     *
+     * @return opcode of the request
+     */
+    private byte writeRandomRequest(DataOutputStream out, Random random) throws IOException {
+        int key = random.nextInt(keyRange);
+        int choice = random.nextInt(100);
+        if (choice < 60) {
+            out.writeByte(WAVLTreeServer.SEARCH);
+            out.writeInt(key);
+            return WAVLTreeServer.SEARCH;
+        } else if (choice < 80) {
+            out.writeByte(WAVLTreeServer.INSERT);
+            out.writeInt(key);
+            WAVLTreeServer.writeString(out, Integer.toString(key));
+            return WAVLTreeServer.INSERT;
+        } else if (choice < 98) {
+            out.writeByte(WAVLTreeServer.DELETE);
+            out.writeInt(key);
+            return WAVLTreeServer.DELETE;
+        } else if (choice < 99) {
+            out.writeByte(WAVLTreeServer.RANGE);
+            out.writeInt(key);
+            out.writeInt(key + 64);
+            return WAVLTreeServer.RANGE;
+        }
+        byte opcode = random.nextBoolean() ? WAVLTreeServer.MIN : WAVLTreeServer.MAX;
+        out.writeByte(opcode);
+        return opcode;
+    }
+
+    private void readResponse(DataInputStream in, byte opcode) throws IOException {
+        switch (opcode) {
+            case WAVLTreeServer.INSERT:
+            case WAVLTreeServer.DELETE:
+                in.readInt();
+                break;
+            case WAVLTreeServer.RANGE:
+                int count = in.readInt();
+                for (int r = 0; r < count; r++) {
+                    in.readInt();
+                    WAVLTreeServer.readString(in);
+                }
+                break;
+            default:
+                WAVLTreeServer.readString(in);
+                break;
+        }
+    }
+}
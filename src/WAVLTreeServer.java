@@ -0,0 +1,426 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * WAVLTreeServer
+ * <p>
+ * Serves a WAVLTree to local clients over TCP or a Unix domain socket, using a compact binary protocol.
+ * <p>
+ * Every connection is handled by its own thread, which is a virtual thread when the JVM supports them
+ * (Java 21 and later). Clients may pipeline requests: the server decodes every request which already
+ * arrived on a connection, runs the whole batch on the tree under a single lock acquisition, and then
+ * flushes all of the batch's responses at once.
+ * <p>
+ * Protocol: integers are big-endian 32-bit, and strings are a byte length followed by UTF-8 bytes,
+ * a length of -1 standing for null. A request is an opcode byte followed by its arguments, and requests
+ * on a connection are answered in order, one response each:
+ * <pre>
+ * INSERT  1  key, info    -&gt; int, result of insert
+ * SEARCH  2  key          -&gt; string, info of the key or null
+ * DELETE  3  key          -&gt; int, result of delete
+ * RANGE   4  low, high    -&gt; int count, followed by count pairs of key and info
+ * MIN     5               -&gt; string, info of the smallest key or null
+ * MAX     6               -&gt; string, info of the largest key or null
+ * </pre>
+ * Strings are at most BUFFER_SIZE (65536) bytes long. A connection which sends an unknown opcode or
+ * a longer string is closed.
+ * <p>
+ * Usage: java WAVLTreeServer [TCP port | Unix socket path]
+ */
+public class WAVLTreeServer implements AutoCloseable {
+    static final byte INSERT = 1;
+    static final byte SEARCH = 2;
+    static final byte DELETE = 3;
+    static final byte RANGE = 4;
+    static final byte MIN = 5;
+    static final byte MAX = 6;
+
+    private static final String DEFAULT_ADDRESS = "7411";
+    private static final int MAX_BATCH = 256; // most requests of a connection run under one lock acquisition
+    static final int BUFFER_SIZE = 1 << 16;
+    static final int MAX_STRING_LENGTH = BUFFER_SIZE; // longest string in bytes, so a client can't exhaust the heap
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000; // longest pause between retries of a failing accept
+
+    private final WAVLTree tree;
+    private final ReentrantLock treeLock; // unlike synchronized, waiting on it doesn't pin a virtual thread
+    private final ServerSocketChannel serverChannel;
+    private final SocketAddress address;
+    private final ExecutorService connectionExecutor;
+    private final Thread acceptThread;
+    private volatile boolean closed;
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        SocketAddress address = parseAddress((args.length > 0) ? args[0] : DEFAULT_ADDRESS);
+        WAVLTreeServer server = new WAVLTreeServer(new WAVLTree(), address);
+        System.out.println("Serving on " + server.address());
+        server.acceptThread.join();
+    }
+
+    /**
+     * Constructor to start serving a tree. The tree may not be used by anyone else until the server is closed.
+     *
+     * @param tree    tree to serve
+     * @param address loopback TCP address or Unix domain socket path to listen on,
+     *                a TCP port of 0 picks a free port
+     * @throws IOException if the address can't be bound
+     */
+    public WAVLTreeServer(WAVLTree tree, SocketAddress address) throws IOException {
+        this.tree = tree;
+        this.treeLock = new ReentrantLock();
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath()); // left behind by a previous run
+            this.serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            this.serverChannel = ServerSocketChannel.open(StandardProtocolFamily.INET);
+        }
+        serverChannel.bind(address);
+        this.address = serverChannel.getLocalAddress();
+        this.connectionExecutor = newConnectionExecutor();
+        this.closed = false;
+
+        this.acceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptConnections();
+            }
+        }, "WAVLTreeServer accept");
+        acceptThread.start();
+    }
+
+    /**
+     * Returns the address the server listens on.
+     *
+     * @return bound TCP address or Unix domain socket address
+     */
+    public SocketAddress address() {
+        return address;
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverChannel.close();
+        connectionExecutor.shutdownNow(); // interrupting a thread blocked on its channel closes the channel
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
+    }
+
+    /**
+     * Parses a command line address.
+     *
+     * @param address a TCP port on the loopback interface, or otherwise a Unix domain socket path
+     * @return the socket address
+     */
+    static SocketAddress parseAddress(String address) {
+        if (address.matches("\\d+")) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        }
+        return UnixDomainSocketAddress.of(address);
+    }
+
+    /**
+     * Creates the executor running connections, with a virtual thread per connection if available.
+     *
+     * @return executor starting a new thread for every task
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            // Looked up reflectively so the server still runs, with platform threads, before Java 21
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Accepts connections until the server is closed. While accept keeps failing, for example because the
+     * process ran out of file descriptors, it is retried after a pause which doubles up to
+     * MAX_ACCEPT_BACKOFF_MILLIS, rather than in a loop which would spin and flood stderr.
+     */
+    private void acceptConnections() {
+        long backoffMillis = 0; // pause before retrying accept, 0 after a success
+        while (!closed) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                if (!closed) {
+                    System.err.println("WAVLTreeServer: listening channel closed, no longer accepting: " + e);
+                }
+                return;
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                backoffMillis = Math.min(Math.max(2 * backoffMillis, 1), MAX_ACCEPT_BACKOFF_MILLIS);
+                System.err.println("WAVLTreeServer: accept failed, retrying in " + backoffMillis + " ms: " + e);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            backoffMillis = 0;
+            connectionExecutor.execute(new Runnable() {
+                public void run() {
+                    serve(channel);
+                }
+            });
+        }
+    }
+
+    /**
+     * Answers the requests of a single connection until the client closes it.
+     *
+     * @param channel connected client
+     */
+    private void serve(SocketChannel channel) {
+        try (SocketChannel connection = channel) {
+            if (!(address instanceof UnixDomainSocketAddress)) {
+                connection.setOption(StandardSocketOptions.TCP_NODELAY, true); // responses are batched already
+            }
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(connection), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(connection), BUFFER_SIZE));
+            RequestBatch batch = new RequestBatch();
+            while (batch.read(in)) {
+                treeLock.lock();
+                try {
+                    batch.execute(tree);
+                } finally {
+                    treeLock.unlock();
+                }
+                batch.writeResponses(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client disconnected or broke the protocol, there is no one to answer
+        }
+    }
+
+    /**
+     * Reads a string in the protocol's encoding.
+     *
+     * @param in stream positioned at the string
+     * @return the string, may be null
+     * @throws ProtocolException if the string is longer than MAX_STRING_LENGTH bytes
+     */
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_LENGTH) {
+            throw new ProtocolException("String length " + length + " exceeds " + MAX_STRING_LENGTH);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a string in the protocol's encoding.
+     *
+     * @param out    stream to write to
+     * @param string string to write, may be null
+     */
+    static void writeString(DataOutput out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Requests of a connection which arrived together, and their results.
+     */
+    private static final class RequestBatch {
+
+        private final byte[] opcodes = new byte[MAX_BATCH];
+        private final int[] keys = new int[MAX_BATCH]; // key, or low key of a range
+        private final int[] highKeys = new int[MAX_BATCH]; // high key of a range
+        private final String[] infos = new String[MAX_BATCH];
+        private final int[] intResults = new int[MAX_BATCH];
+        private final String[] stringResults = new String[MAX_BATCH];
+        private final int[][] rangeKeys = new int[MAX_BATCH][];
+        private final String[][] rangeInfos = new String[MAX_BATCH][];
+        private int size; // number of requests in the batch
+
+        /**
+         * Waits for a request, then reads it along with every following request which arrived completely.
+         * A request which only partly arrived is left for the next batch, so the batch runs without waiting
+         * for the rest of it.
+         *
+         * @param in connection's input
+         * @return false if the client closed the connection
+         * @throws IOException if the connection failed or a request is malformed
+         */
+        private boolean read(DataInputStream in) throws IOException {
+            size = 0;
+            int opcode = in.read();
+            if (opcode < 0) {
+                return false;
+            }
+            readRequest((byte) opcode, in); // may wait for the rest of the request, as no other request is pending
+            while (size < MAX_BATCH && hasCompleteRequest(in)) {
+                readRequest(in.readByte(), in);
+            }
+            return true;
+        }
+
+        /**
+         * Checks whether the next request can be read without waiting for input, by peeking at its header.
+         *
+         * @param in connection's input, which supports mark and reset
+         * @return true iff every byte of the next request is available, or its opcode is unknown
+         * @throws IOException if the connection failed
+         */
+        private boolean hasCompleteRequest(DataInputStream in) throws IOException {
+            int available = in.available();
+            if (available == 0) {
+                return false;
+            }
+            in.mark(9); // opcode, key and string length
+            byte opcode = in.readByte();
+            boolean complete;
+            switch (opcode) {
+                case INSERT:
+                    complete = available >= 9;
+                    if (complete) {
+                        in.readInt();
+                        int length = in.readInt();
+                        complete = available - 9 >= Math.min(Math.max(length, 0), MAX_STRING_LENGTH);
+                    }
+                    break;
+                case SEARCH:
+                case DELETE:
+                    complete = available >= 5;
+                    break;
+                case RANGE:
+                    complete = available >= 9;
+                    break;
+                default:
+                    complete = true; // MIN and MAX have no arguments, and readRequest rejects unknown opcodes
+            }
+            in.reset();
+            return complete;
+        }
+
+        private void readRequest(byte opcode, DataInputStream in) throws IOException {
+            opcodes[size] = opcode;
+            switch (opcode) {
+                case INSERT:
+                    keys[size] = in.readInt();
+                    infos[size] = readString(in);
+                    break;
+                case SEARCH:
+                case DELETE:
+                    keys[size] = in.readInt();
+                    break;
+                case RANGE:
+                    keys[size] = in.readInt();
+                    highKeys[size] = in.readInt();
+                    break;
+                case MIN:
+                case MAX:
+                    break;
+                default:
+                    throw new ProtocolException("Unknown opcode " + opcode);
+            }
+            size++;
+        }
+
+        /**
+         * Runs the batch's requests on the tree.
+         * <p>
+         * Precondition: the caller holds the tree's lock
+         *
+         * @param tree tree to query and update
+         */
+        private void execute(WAVLTree tree) {
+            for (int j = 0; j < size; j++) {
+                switch (opcodes[j]) {
+                    case INSERT:
+                        intResults[j] = tree.insert(keys[j], infos[j]);
+                        break;
+                    case SEARCH:
+                        stringResults[j] = tree.search(keys[j]);
+                        break;
+                    case DELETE:
+                        intResults[j] = tree.delete(keys[j]);
+                        break;
+                    case RANGE:
+                        rangeKeys[j] = tree.keysInRange(keys[j], highKeys[j]);
+                        rangeInfos[j] = tree.infoInRange(keys[j], highKeys[j]);
+                        break;
+                    case MIN:
+                        stringResults[j] = tree.min();
+                        break;
+                    case MAX:
+                        stringResults[j] = tree.max();
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Writes the batch's responses in request order, dropping references to the results.
+         *
+         * @param out connection's output, which the caller flushes
+         */
+        private void writeResponses(DataOutputStream out) throws IOException {
+            for (int j = 0; j < size; j++) {
+                switch (opcodes[j]) {
+                    case INSERT:
+                    case DELETE:
+                        out.writeInt(intResults[j]);
+                        break;
+                    case RANGE:
+                        out.writeInt(rangeKeys[j].length);
+                        for (int r = 0; r < rangeKeys[j].length; r++) {
+                            out.writeInt(rangeKeys[j][r]);
+                            writeString(out, rangeInfos[j][r]);
+                        }
+                        rangeKeys[j] = null;
+                        rangeInfos[j] = null;
+                        break;
+                    default:
+                        writeString(out, stringResults[j]);
+                        stringResults[j] = null;
+                        break;
+                }
+                infos[j] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generates the primitive key specializations of WAVLTree from KeyedWAVLTree.java.template,
+ * so that all of them share a single copy of the WAVL rebalancing code.
+ * <p>
+ * Usage, from the repository root: java templates/GenerateKeyedWAVLTrees.java [--check]
+ * <p>
+ * With --check, nothing is written, and the generator fails unless every generated file in src matches
+ * the template, so that StressTester, which tests the files in src, covers the template too.
+ */
+public class GenerateKeyedWAVLTrees {
+    private static final Path TEMPLATE = Paths.get("templates", "KeyedWAVLTree.java.template");
+    private static final Path OUTPUT_DIRECTORY = Paths.get("src");
+
+    public static void main(String args[]) throws IOException {
+        boolean check = args.length > 0 && args[0].equals("--check");
+        String template = new String(Files.readAllBytes(TEMPLATE), StandardCharsets.UTF_8);
+        boolean upToDate = generate(template, longKeys(), check);
+        upToDate &= generate(template, long128Keys(), check);
+        if (!upToDate) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, String> longKeys() {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put("CLASS", "LongWAVLTree");
+        values.put("KEY_DESCRIPTION", "64-bit long keys");
+        values.put("KEY_PARAMS", "long k");
+        values.put("KEY_ARGS", "k");
+        values.put("KEY_LENGTH", "1");
+        values.put("KEYS_ARRAY_LAYOUT", "Each key takes a single element.");
+        values.put("COMPARE_BODY", "return Long.compare(k, node.key);");
+        values.put("SWAP_KEYS", "long tempKey = node.key;\n"
+                + "node.key = predecessor.key;\n"
+                + "predecessor.key = tempKey;");
+        values.put("STORE_KEY", "arr[index] = node.key;");
+        values.put("NODE_KEY_DESCRIPTION", "long key");
+        values.put("NODE_KEY_FIELDS", "private long key;");
+        values.put("NODE_KEY_ASSIGN", "this.key = k;");
+        return values;
+    }
+
+    private static Map<String, String> long128Keys() {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put("CLASS", "Long128WAVLTree");
+        values.put("KEY_DESCRIPTION", "128-bit keys (high 64 bits kHigh, low 64 bits kLow)");
+        values.put("KEY_PARAMS", "long kHigh, long kLow");
+        values.put("KEY_ARGS", "kHigh, kLow");
+        values.put("KEY_LENGTH", "2");
+        values.put("KEYS_ARRAY_LAYOUT", "Each key takes two elements, its high 64 bits followed by its low 64 bits.");
+        values.put("COMPARE_BODY", "if (kHigh != node.keyHigh) {\n"
+                + "    return Long.compare(kHigh, node.keyHigh);\n"
+                + "}\n"
+                + "return Long.compareUnsigned(kLow, node.keyLow);");
+        values.put("SWAP_KEYS", "long tempKeyHigh = node.keyHigh;\n"
+                + "long tempKeyLow = node.keyLow;\n"
+                + "node.keyHigh = predecessor.keyHigh;\n"
+                + "node.keyLow = predecessor.keyLow;\n"
+                + "predecessor.keyHigh = tempKeyHigh;\n"
+                + "predecessor.keyLow = tempKeyLow;");
+        values.put("STORE_KEY", "arr[index] = node.keyHigh;\n"
+                + "arr[index + 1] = node.keyLow;");
+        values.put("NODE_KEY_DESCRIPTION", "128-bit key");
+        values.put("NODE_KEY_FIELDS", "private long keyHigh;\n"
+                + "private long keyLow;");
+        values.put("NODE_KEY_ASSIGN", "this.keyHigh = kHigh;\n"
+                + "this.keyLow = kLow;");
+        return values;
+    }
+
+    /**
+     * Generates one class from the template, or with check set, compares it with the existing file instead.
+     *
+     * @return false if check is set and the existing file differs from the generated class, otherwise true
+     */
+    private static boolean generate(String template, Map<String, String> values, boolean check) throws IOException {
+        String[] lines = template.split("\n", -1);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                result.append('\n');
+            }
+            result.append(substitute(lines[i], values));
+        }
+        if (result.indexOf("$") >= 0) {
+            throw new IllegalStateException("Unknown placeholder left in " + values.get("CLASS"));
+        }
+
+        Path output = OUTPUT_DIRECTORY.resolve(values.get("CLASS") + ".java");
+        byte[] generated = result.toString().getBytes(StandardCharsets.UTF_8);
+        if (check) {
+            boolean upToDate = Files.exists(output) && Arrays.equals(Files.readAllBytes(output), generated);
+            System.out.println(output + (upToDate ? " matches the template" : " differs from the template, regenerate it"));
+            return upToDate;
+        }
+        Files.write(output, generated);
+        System.out.println("Generated " + output);
+        return true;
+    }
+
+    /**
+     * Replaces the placeholders in a template line. Lines of a multi-line value after the first
+     * get the indentation of the template line.
+     */
+    private static String substitute(String line, Map<String, String> values) {
+        int indentationLength = 0;
+        while (indentationLength < line.length() && line.charAt(indentationLength) == ' ') {
+            indentationLength++;
+        }
+        String indentation = line.substring(0, indentationLength);
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String value = entry.getValue().replace("\n", "\n" + indentation);
+            line = line.replace("$" + entry.getKey() + "$", value);
+        }
+        return line;
+    }
+}